@@ -0,0 +1,91 @@
+package com.scott.plugin;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Realistic SSDP datagrams for the benchmarks.
+ */
+final class Corpus {
+
+    static final String RESPONSE = "HTTP/1.1 200 OK\r\n"
+        + "CACHE-CONTROL: max-age=1800\r\n"
+        + "DATE: Thu, 15 Oct 2026 10:00:00 GMT\r\n"
+        + "EXT:\r\n"
+        + "LOCATION: http://192.168.1.23:49152/description.xml\r\n"
+        + "OPT: \"http://schemas.upnp.org/upnp/1/0/\"; ns=01\r\n"
+        + "01-NLS: 4a7c2f1e-1dd2-11b2-a3f5-b1e8d4c0a1f2\r\n"
+        + "SERVER: Linux/4.9, UPnP/1.0, Portable SDK for UPnP devices/1.6.22\r\n"
+        + "X-User-Agent: redsonic\r\n"
+        + "ST: urn:schemas-upnp-org:device:MediaRenderer:1\r\n"
+        + "USN: uuid:5f9ec1b3-ed59-79bb-4530-745ac2ba3f4c::"
+        + "urn:schemas-upnp-org:device:MediaRenderer:1\r\n"
+        + "BOOTID.UPNP.ORG: 1\r\n"
+        + "CONFIGID.UPNP.ORG: 1337\r\n"
+        + "\r\n";
+
+    static final String NOTIFY_ALIVE = "NOTIFY * HTTP/1.1\r\n"
+        + "HOST: 239.255.255.250:1900\r\n"
+        + "CACHE-CONTROL: max-age=1800\r\n"
+        + "LOCATION: http://192.168.1.42:8008/ssdp/device-desc.xml\r\n"
+        + "NT: urn:dial-multiscreen-org:service:dial:1\r\n"
+        + "NTS: ssdp:alive\r\n"
+        + "SERVER: Linux/3.8.13+, UPnP/1.0, Portable SDK for UPnP devices/1.6.18\r\n"
+        + "USN: uuid:3e1cc7c3-f8c7-4f47-9a58-5d1cf06b2b1a::"
+        + "urn:dial-multiscreen-org:service:dial:1\r\n"
+        + "BOOTID.UPNP.ORG: 7\r\n"
+        + "\r\n";
+
+    static final String NOTIFY_BYEBYE = "NOTIFY * HTTP/1.1\r\n"
+        + "HOST: 239.255.255.250:1900\r\n"
+        + "NT: urn:dial-multiscreen-org:service:dial:1\r\n"
+        + "NTS: ssdp:byebye\r\n"
+        + "USN: uuid:3e1cc7c3-f8c7-4f47-9a58-5d1cf06b2b1a::"
+        + "urn:dial-multiscreen-org:service:dial:1\r\n"
+        + "BOOTID.UPNP.ORG: 7\r\n"
+        + "\r\n";
+
+    static final String OVERSIZED = oversized();
+
+    private Corpus() {
+    }
+
+    /**
+     * @param kind
+     *            One of "response", "notifyAlive", "notifyByebye" or "oversized".
+     * @return the datagram of that kind.
+     */
+    static byte[] packet(String kind) {
+        String packet;
+
+        if ("response".equals(kind)) {
+            packet = RESPONSE;
+        } else if ("notifyAlive".equals(kind)) {
+            packet = NOTIFY_ALIVE;
+        } else if ("notifyByebye".equals(kind)) {
+            packet = NOTIFY_BYEBYE;
+        } else if ("oversized".equals(kind)) {
+            packet = OVERSIZED;
+        } else {
+            throw new IllegalArgumentException("Unknown kind: " + kind);
+        }
+
+        return packet.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return a response with a bunch of long vendor-specific headers, like some TVs send.
+     */
+    private static String oversized() {
+        StringBuilder packet = new StringBuilder(RESPONSE.substring(0, RESPONSE.length() - 2));
+
+        for (int i = 0; i < 16; i++) {
+            packet.append("X-Vendor-Capability-").append(i).append(": ");
+
+            for (int j = 0; j < 24; j++) packet.append("feature").append(j).append(';');
+
+            packet.append("\r\n");
+        }
+
+        return packet.append("\r\n").toString();
+    }
+}
@@ -0,0 +1,495 @@
+package com.scott.plugin;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * Simulates a fleet of SSDP devices on this host and runs an {@link SsdpEngine} against it, to
+ * find out how the receive/parse/dedup pipeline copes with hundreds or thousands of devices.
+ * </p>
+ * <p>
+ * The virtual devices share one socket, which joins the SSDP multicast group. They answer
+ * every M-SEARCH for their service type (or "ssdp:all") after a random delay within the MX of
+ * the request, send periodic NOTIFY alive messages, and some of them leave with a NOTIFY byebye
+ * and come back later. Malformed packets are injected, too.
+ * </p>
+ * <p>
+ * With --descriptions true, the fleet also serves the device descriptions behind the LOCATION
+ * headers on a local HTTP server, and the engine fetches them.
+ * </p>
+ * <p>
+ * Usage:
+ * </p>
+ * <pre>
+ * java -cp target/benchmarks.jar com.scott.plugin.FleetSimulator [--devices 500]
+ *     [--duration 30] [--mx 2] [--notify-interval 10000] [--byebye-rate 0.05]
+ *     [--malformed-rate 0.01] [--batch-size 0] [--batch-delay 0] [--descriptions false]
+ * </pre>
+ */
+public final class FleetSimulator {
+
+    private static final String SERVICE_TYPE = "urn:schemas-upnp-org:device:MediaRenderer:1";
+    private static final String USN_PREFIX = "uuid:00000000-0000-1000-8000-";
+    private static final String RESPONSE = "HTTP/1.1 200 OK\r\n"
+        + "CACHE-CONTROL: max-age=1800\r\n"
+        + "EXT:\r\n"
+        + "LOCATION: http://%s:49152/device%d/description.xml\r\n"
+        + "SERVER: FleetSimulator/1.0 UPnP/1.1 Device/%d\r\n"
+        + "ST: %s\r\n"
+        + "USN: %s::%s\r\n"
+        + "BOOTID.UPNP.ORG: 1\r\n"
+        + "\r\n";
+    private static final String NOTIFY = "NOTIFY * HTTP/1.1\r\n"
+        + "HOST: 239.255.255.250:1900\r\n"
+        + "CACHE-CONTROL: max-age=1800\r\n"
+        + "LOCATION: http://%s:49152/device%d/description.xml\r\n"
+        + "NT: %s\r\n"
+        + "NTS: %s\r\n"
+        + "SERVER: FleetSimulator/1.0 UPnP/1.1 Device/%d\r\n"
+        + "USN: %s::%s\r\n"
+        + "BOOTID.UPNP.ORG: 1\r\n"
+        + "\r\n";
+    private static final int DESCRIPTION_PORT = 49152;
+    private static final String DESCRIPTION = "<?xml version=\"1.0\"?>\n"
+        + "<root xmlns=\"urn:schemas-upnp-org:device-1-0\">\n"
+        + "  <specVersion><major>1</major><minor>1</minor></specVersion>\n"
+        + "  <device>\n"
+        + "    <deviceType>" + SERVICE_TYPE + "</deviceType>\n"
+        + "    <friendlyName>Simulated Renderer %d</friendlyName>\n"
+        + "    <manufacturer>FleetSimulator</manufacturer>\n"
+        + "    <modelName>Renderer</modelName>\n"
+        + "    <modelNumber>%d</modelNumber>\n"
+        + "    <UDN>%s</UDN>\n"
+        + "    <serviceList>\n"
+        + "      <service>\n"
+        + "        <serviceType>urn:schemas-upnp-org:service:AVTransport:1</serviceType>\n"
+        + "        <serviceId>urn:upnp-org:serviceId:AVTransport</serviceId>\n"
+        + "        <SCPDURL>/AVTransport.xml</SCPDURL>\n"
+        + "        <controlURL>/AVTransport/control</controlURL>\n"
+        + "        <eventSubURL>/AVTransport/event</eventSubURL>\n"
+        + "      </service>\n"
+        + "    </serviceList>\n"
+        + "  </device>\n"
+        + "</root>\n";
+    private static final String[] MALFORMED = {
+        "",
+        "\r\n\r\n",
+        "GARBAGE",
+        "HTTP/1.1 200 OK\r\nST urn:no-colon\r\nUSN\r\n",
+        "NOTIFY * HTTP/1.1\r\nNT: " + SERVICE_TYPE + "\r\nNTS: ssdp:alive\r\nUSN: ",
+        "HTTP/1.1 404 Not Found\r\n\r\n",
+    };
+
+    private final int mDevices;
+    private final long mDuration;
+    private final int mMx;
+    private final long mNotifyInterval;
+    private final double mByebyeRate;
+    private final double mMalformedRate;
+    private final int mBatchSize;
+    private final int mBatchDelay;
+    private final boolean mDescriptions;
+
+    private final Random mRandom = new Random();
+    private final ScheduledExecutorService mScheduler = Executors.newScheduledThreadPool(2);
+    private final Set<String> mDiscovered =
+        Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private final AtomicLong mSearches = new AtomicLong();
+    private final AtomicLong mResponses = new AtomicLong();
+    private final AtomicLong mNotifies = new AtomicLong();
+    private final AtomicLong mByebyes = new AtomicLong();
+    private final AtomicLong mMalformed = new AtomicLong();
+    private final AtomicLong mSendErrors = new AtomicLong();
+    private final AtomicLong mAnswers = new AtomicLong();
+    private final AtomicLong mCallbacks = new AtomicLong();
+    private final AtomicLong mErrors = new AtomicLong();
+    private final AtomicLong mDescribed = new AtomicLong();
+    private final AtomicLong mDescriptionErrors = new AtomicLong();
+    private final AtomicLong mDescriptionRequests = new AtomicLong();
+    private volatile long mFullDiscovery = -1;
+
+    private DatagramChannel mChannel;
+    private String mHost;
+    private long mStart;
+
+    private FleetSimulator(String[] args) {
+        int devices = 500;
+        long duration = 30;
+        int mx = 2;
+        long notifyInterval = 10000;
+        double byebyeRate = 0.05;
+        double malformedRate = 0.01;
+        int batchSize = 0;
+        int batchDelay = 0;
+        boolean descriptions = false;
+
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+
+            if ("--devices".equals(args[i])) {
+                devices = Integer.parseInt(value);
+            } else if ("--duration".equals(args[i])) {
+                duration = Long.parseLong(value);
+            } else if ("--mx".equals(args[i])) {
+                mx = Integer.parseInt(value);
+            } else if ("--notify-interval".equals(args[i])) {
+                notifyInterval = Long.parseLong(value);
+            } else if ("--byebye-rate".equals(args[i])) {
+                byebyeRate = Double.parseDouble(value);
+            } else if ("--malformed-rate".equals(args[i])) {
+                malformedRate = Double.parseDouble(value);
+            } else if ("--batch-size".equals(args[i])) {
+                batchSize = Integer.parseInt(value);
+            } else if ("--batch-delay".equals(args[i])) {
+                batchDelay = Integer.parseInt(value);
+            } else if ("--descriptions".equals(args[i])) {
+                descriptions = Boolean.parseBoolean(value);
+            } else {
+                throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+
+        mDevices = devices;
+        mDuration = duration * 1000;
+        mMx = mx;
+        mNotifyInterval = notifyInterval;
+        mByebyeRate = byebyeRate;
+        mMalformedRate = malformedRate;
+        mBatchSize = batchSize;
+        mBatchDelay = batchDelay;
+        mDescriptions = descriptions;
+    }
+
+    public static void main(String[] args) throws Exception {
+        new FleetSimulator(args).run();
+    }
+
+    private void run() throws Exception {
+        openFleet();
+
+        HttpServer http = mDescriptions ? serveDescriptions() : null;
+
+        SsdpEngine engine = new SsdpEngine();
+
+        Subscription subscription = new Subscription("simulator", new CountingListener(),
+            Collections.singleton(SERVICE_TYPE));
+        subscription.listenForNotifies = true;
+        subscription.mx = mMx;
+        subscription.batchSize = mBatchSize > 0 ? mBatchSize : 1;
+        subscription.batchDelay = mBatchDelay;
+        subscription.scheduler = new SearchScheduler(4000, 4000);
+        subscription.fetchDescription = mDescriptions;
+
+        Thread fleet = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                serve();
+            }
+        }, "FleetSimulator");
+        fleet.start();
+
+        scheduleNotifies();
+
+        mStart = System.nanoTime();
+        engine.subscribe(subscription);
+
+        Thread.sleep(mDuration);
+
+        engine.shutdown(1000);
+        mScheduler.shutdownNow();
+        mChannel.close();
+        fleet.join();
+
+        if (http != null) http.stop(0);
+
+        report((System.nanoTime() - mStart) / 1000000);
+
+        System.out.println("Engine:     " + engine.getStats().toString(2));
+
+        System.exit(0);
+    }
+
+    /**
+     * Serves the device descriptions of the fleet, like devices do on their LOCATION URLs.
+     */
+    private HttpServer serveDescriptions() throws IOException {
+        // Headers and body are written separately, don't let Nagle delay the body.
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+
+        HttpServer http = HttpServer.create(new InetSocketAddress(DESCRIPTION_PORT), 64);
+
+        http.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                mDescriptionRequests.incrementAndGet();
+
+                String path = exchange.getRequestURI().getPath();
+                int device = Integer.parseInt(path.replaceAll("\\D", ""));
+
+                byte[] body = String.format(Locale.US, DESCRIPTION, device, device, usn(device))
+                    .getBytes(StandardCharsets.UTF_8);
+
+                exchange.getResponseHeaders().set("Content-Type", "text/xml; charset=\"utf-8\"");
+                exchange.sendResponseHeaders(200, body.length);
+                exchange.getResponseBody().write(body);
+                exchange.close();
+            }
+        });
+        http.setExecutor(Executors.newFixedThreadPool(4));
+        http.start();
+
+        return http;
+    }
+
+    /**
+     * Opens the socket of the fleet on the SSDP port and joins the multicast group on the
+     * same interface the engine will use.
+     */
+    private void openFleet() throws IOException {
+        NetworkInterface ni = findInterface();
+
+        mChannel = DatagramChannel.open(StandardProtocolFamily.INET);
+        mChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        mChannel.setOption(StandardSocketOptions.IP_MULTICAST_IF, ni);
+        mChannel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+        mChannel.bind(new InetSocketAddress(SsdpEngine.PORT));
+        mChannel.join(InetAddress.getByName(SsdpEngine.ADDRESS), ni);
+
+        Enumeration<InetAddress> addresses = ni.getInetAddresses();
+
+        while (addresses.hasMoreElements()) {
+            InetAddress address = addresses.nextElement();
+
+            if (address instanceof Inet4Address) mHost = address.getHostAddress();
+        }
+    }
+
+    /**
+     * Answers M-SEARCH requests, until the socket is closed.
+     */
+    private void serve() {
+        ByteBuffer buffer = ByteBuffer.allocate(9216);
+
+        while (true) {
+            SocketAddress source;
+
+            try {
+                buffer.clear();
+                source = mChannel.receive(buffer);
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+
+            buffer.flip();
+            SsdpMessage request = SsdpParser.parse(buffer.array(), buffer.limit());
+
+            if (!SsdpParser.TYPE_MSEARCH.equals(request.type)) {
+                // Our own NOTIFYs.
+                continue;
+            }
+
+            if (!SERVICE_TYPE.equals(request.st) && !Subscription.SSDP_ALL.equals(request.st)) {
+                continue;
+            }
+
+            mSearches.incrementAndGet();
+
+            int mx = 1;
+
+            try {
+                mx = Math.max(1, Math.min(5, Integer.parseInt(request.header("MX"))));
+            } catch (NumberFormatException e) {
+                // Missing or broken, answer within 1 second.
+            }
+
+            for (int device = 0; device < mDevices; device++) {
+                final int d = device;
+                final SocketAddress target = source;
+
+                mScheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        respond(d, target);
+                    }
+                }, mRandom.nextInt(mx * 1000), TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Schedules the periodic NOTIFY alive messages of all devices with random phases, the
+     * byebye messages and the malformed packets.
+     */
+    private void scheduleNotifies() {
+        for (int device = 0; device < mDevices; device++) {
+            final int d = device;
+
+            mScheduler.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    if (mRandom.nextDouble() < mByebyeRate) {
+                        announce(d, "ssdp:byebye");
+                        mByebyes.incrementAndGet();
+                    }
+                    else {
+                        announce(d, "ssdp:alive");
+                        mNotifies.incrementAndGet();
+                    }
+
+                    if (mRandom.nextDouble() < mMalformedRate) {
+                        send(MALFORMED[mRandom.nextInt(MALFORMED.length)], group());
+                        mMalformed.incrementAndGet();
+                    }
+                }
+            }, mRandom.nextInt((int) mNotifyInterval), mNotifyInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void respond(int device, SocketAddress target) {
+        send(String.format(Locale.US, RESPONSE, mHost, device, device, SERVICE_TYPE, usn(device),
+            SERVICE_TYPE), target);
+
+        mResponses.incrementAndGet();
+    }
+
+    private void announce(int device, String nts) {
+        send(String.format(Locale.US, NOTIFY, mHost, device, SERVICE_TYPE, nts, device,
+            usn(device), SERVICE_TYPE), group());
+    }
+
+    private void send(String packet, SocketAddress target) {
+        try {
+            mChannel.send(ByteBuffer.wrap(packet.getBytes(StandardCharsets.UTF_8)), target);
+        } catch (IOException e) {
+            mSendErrors.incrementAndGet();
+        }
+    }
+
+    private static SocketAddress group() {
+        return new InetSocketAddress(SsdpEngine.ADDRESS, SsdpEngine.PORT);
+    }
+
+    private static String usn(int device) {
+        return String.format(Locale.US, USN_PREFIX + "%012d", device);
+    }
+
+    private void report(long elapsed) {
+        long fleetPackets = mResponses.get() + mNotifies.get() + mByebyes.get()
+            + mMalformed.get();
+
+        System.out.println("Fleet:      " + mDevices + " devices, " + mSearches.get()
+            + " M-SEARCHes answered in " + elapsed + " ms");
+        System.out.println("Sent:       " + mResponses.get() + " responses, " + mNotifies.get()
+            + " alive, " + mByebyes.get() + " byebye, " + mMalformed.get() + " malformed, "
+            + mSendErrors.get() + " send errors");
+        System.out.println("Throughput: " + fleetPackets * 1000 / Math.max(1, elapsed)
+            + " packets/s sent, " + mAnswers.get() * 1000 / Math.max(1, elapsed)
+            + " answers/s delivered in " + mCallbacks.get() + " callbacks");
+        System.out.println("Discovered: " + mDiscovered.size() + " of " + mDevices
+            + " devices, " + (mDevices - mDiscovered.size()) + " never seen (dropped), "
+            + mErrors.get() + " engine errors");
+        System.out.println("Full discovery after: "
+            + (mFullDiscovery < 0 ? "never" : mFullDiscovery + " ms"));
+
+        if (mDescriptions) {
+            System.out.println("Descriptions: " + mDescribed.get() + " delivered, "
+                + mDescriptionErrors.get() + " errors, " + mDescriptionRequests.get()
+                + " HTTP requests served");
+        }
+    }
+
+    private static NetworkInterface findInterface() throws IOException {
+        Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+
+        while (interfaces != null && interfaces.hasMoreElements()) {
+            NetworkInterface ni = interfaces.nextElement();
+
+            if (!ni.isUp() || ni.isLoopback() || !ni.supportsMulticast()) continue;
+
+            Enumeration<InetAddress> addresses = ni.getInetAddresses();
+
+            while (addresses.hasMoreElements()) {
+                if (addresses.nextElement() instanceof Inet4Address) return ni;
+            }
+        }
+
+        throw new IOException("No network interface available for multicast!");
+    }
+
+    /**
+     * Counts delivered answers and notes, when every device was discovered.
+     */
+    private class CountingListener implements SsdpEngine.Listener {
+
+        @Override
+        public void onAnswer(JSONObject answer) {
+            mCallbacks.incrementAndGet();
+            count(answer);
+        }
+
+        @Override
+        public void onAnswers(JSONArray answers) {
+            mCallbacks.incrementAndGet();
+
+            for (int i = 0; i < answers.length(); i++) {
+                count(answers.optJSONObject(i));
+            }
+        }
+
+        @Override
+        public void onError(String message) {
+            mErrors.incrementAndGet();
+            System.err.println(message);
+        }
+
+        private void count(JSONObject answer) {
+            mAnswers.incrementAndGet();
+
+            if (answer.has("description")) mDescribed.incrementAndGet();
+
+            if (answer.has("descriptionError") && mDescriptionErrors.incrementAndGet() == 1) {
+                System.err.println(answer.optString("descriptionError"));
+            }
+
+            String usn = answer.optString("USN", "");
+
+            // Malformed packets may still carry a USN header, but they aren't devices.
+            if (usn.startsWith(USN_PREFIX) && mDiscovered.add(usn)
+                && mDiscovered.size() == mDevices) {
+                mFullDiscovery = (System.nanoTime() - mStart) / 1000000;
+            }
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.scott.plugin;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of {@link SsdpParser#parse(byte[], int)}, with and without a header projection, of
+ * building the JSON form of an answer, which is only done for delivered answers, and of
+ * {@link SsdpParser#capitalize(String)}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParserBenchmark {
+
+    private static final String[] HEADERS = {
+        "CACHE-CONTROL", "location", "Server", "st", "USN", "BOOTID.UPNP.ORG", "X-User-Agent"
+    };
+
+    @Param({"response", "notifyAlive", "notifyByebye", "oversized"})
+    public String kind;
+
+    private byte[] mBuffer;
+    private int mLength;
+    private HeaderSet mHeaders;
+
+    @Setup
+    public void setup() {
+        byte[] packet = Corpus.packet(kind);
+
+        // Like the engine: The datagram sits at the start of a larger, reused buffer.
+        mBuffer = new byte[9216];
+        System.arraycopy(packet, 0, mBuffer, 0, packet.length);
+        mLength = packet.length;
+
+        // A listener, which only wants the location: Routing headers plus LOCATION.
+        mHeaders = new HeaderSet(Arrays.asList(SsdpParser.HOT_HEADERS));
+    }
+
+    @Benchmark
+    public SsdpMessage parse() {
+        return SsdpParser.parse(mBuffer, mLength);
+    }
+
+    @Benchmark
+    public SsdpMessage parseProjected() {
+        return SsdpParser.parse(mBuffer, mLength, mHeaders);
+    }
+
+    @Benchmark
+    public JSONObject parseToJson() {
+        return SsdpParser.parse(mBuffer, mLength).toJSON();
+    }
+
+    @Benchmark
+    public void capitalize(Blackhole blackhole) {
+        for (String header : HEADERS) {
+            blackhole.consume(SsdpParser.capitalize(header));
+        }
+    }
+}
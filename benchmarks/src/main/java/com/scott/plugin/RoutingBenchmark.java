@@ -0,0 +1,97 @@
+package com.scott.plugin;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Throughput of {@link SsdpEngine#result(SsdpMessage)}: The type/NT/USN lookup, the
+ * subscription filter and the dedup check, including parsing, since routing consumes the parsed
+ * answer.
+ * </p>
+ * <p>
+ * Devices are already known after the first invocation, so this measures the steady state of
+ * a discovery storm: Mostly duplicates.
+ * </p>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RoutingBenchmark {
+
+    @Param({"response", "notifyAlive", "notifyByebye", "oversized"})
+    public String kind;
+
+    @Param({"1", "3"})
+    public int subscriptions;
+
+    private SsdpEngine mEngine;
+    private byte[] mPacket;
+
+    @Setup
+    public void setup() {
+        // Never start the background thread, we drive the engine ourselves.
+        mEngine = new SsdpEngine(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread();
+            }
+        });
+
+        String[] serviceTypes = {
+            "urn:schemas-upnp-org:device:MediaRenderer:1",
+            "urn:dial-multiscreen-org:service:dial:1",
+            "ssdp:all"
+        };
+
+        for (int i = 0; i < subscriptions; i++) {
+            Subscription subscription = new Subscription(String.valueOf(i), new NullListener(),
+                new LinkedHashSet<String>(Arrays.asList(serviceTypes[i])));
+            subscription.listenForNotifies = true;
+            subscription.scheduler = new SearchScheduler(4000, 4000);
+
+            mEngine.subscribe(subscription);
+        }
+
+        mPacket = Corpus.packet(kind);
+    }
+
+    @Benchmark
+    public void parseAndRoute() {
+        mEngine.result(SsdpParser.parse(mPacket, mPacket.length));
+    }
+
+    private static class NullListener implements SsdpEngine.Listener {
+
+        @Override
+        public void onAnswer(JSONObject answer) {
+        }
+
+        @Override
+        public void onAnswers(JSONArray answers) {
+        }
+
+        @Override
+        public void onError(String message) {
+        }
+    }
+}
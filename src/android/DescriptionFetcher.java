@@ -0,0 +1,336 @@
+package com.scott.plugin;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Fetches and parses UPnP device descriptions, the XML documents behind the LOCATION header.
+ * </p>
+ * <p>
+ * Requests run concurrently on a small, bounded thread pool, whose threads die when idle.
+ * {@link HttpURLConnection} keeps connections alive and reuses them per host, as long as every
+ * response is read completely, which is done here. Descriptions are parsed with a streaming
+ * {@link XmlPullParser} and cached by USN plus CONFIGID.UPNP.ORG, which devices increase, when
+ * their description changes. Concurrent requests for the same key are coalesced.
+ * </p>
+ * <p>
+ * Only http(s) URLs are fetched, redirects are not followed and documents are limited to
+ * {@link #MAX_SIZE}, since the URLs come from the network.
+ * </p>
+ */
+class DescriptionFetcher {
+
+    static final int THREADS = 4;
+    /**
+     * Enough for a burst of answers from as many devices as a {@link DeviceCache} holds.
+     */
+    static final int QUEUE_SIZE = DeviceCache.DEFAULT_CAPACITY;
+    static final int CONNECT_TIMEOUT = 2000;
+    static final int READ_TIMEOUT = 3000;
+    static final int MAX_SIZE = 64 * 1024;
+    static final int CACHE_SIZE = 256;
+
+    private static final String[] DEVICE_FIELDS = {
+        "deviceType", "friendlyName", "manufacturer", "manufacturerURL", "modelDescription",
+        "modelName", "modelNumber", "modelURL", "serialNumber", "UDN", "presentationURL",
+    };
+    private static final String[] SERVICE_FIELDS = {
+        "serviceType", "serviceId", "SCPDURL", "controlURL", "eventSubURL",
+    };
+
+    /**
+     * Receives the result of {@link #fetch(String, String, Callback)}.
+     */
+    interface Callback {
+
+        /**
+         * Called on a thread of the pool or, if the request couldn't be queued, on the calling
+         * thread.
+         *
+         * @param description
+         *            The parsed description or null on error.
+         * @param error
+         *            An error message or null on success.
+         */
+        void onDescription(JSONObject description, String error);
+    }
+
+    private final ThreadPoolExecutor mExecutor;
+    private final Map<String, JSONObject> mCache;
+    private final Map<String, List<Callback>> mInFlight = new HashMap<String, List<Callback>>();
+    private XmlPullParserFactory mFactory;
+
+    DescriptionFetcher() {
+        mExecutor = new ThreadPoolExecutor(THREADS, THREADS, 30, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(QUEUE_SIZE), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "DescriptionFetcher");
+                    thread.setDaemon(true);
+
+                    return thread;
+                }
+            });
+        mExecutor.allowCoreThreadTimeOut(true);
+
+        mCache = new LinkedHashMap<String, JSONObject>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, JSONObject> eldest) {
+                return size() > CACHE_SIZE;
+            }
+        };
+    }
+
+    /**
+     * @param usn
+     *            The USN of a device. May be null.
+     * @param configId
+     *            The value of its CONFIGID.UPNP.ORG header. May be null.
+     * @return the cache key.
+     */
+    static String key(String usn, String configId) {
+        return usn + '#' + configId;
+    }
+
+    /**
+     * @param key
+     *            A key created by {@link #key(String, String)}.
+     * @return the cached description or null.
+     */
+    synchronized JSONObject cached(String key) {
+        return mCache.get(key);
+    }
+
+    /**
+     * Adds a description, which is known from elsewhere, e.g. from the warm-start cache.
+     *
+     * @param key
+     *            A key created by {@link #key(String, String)}.
+     * @param description
+     *            The parsed description.
+     */
+    synchronized void put(String key, JSONObject description) {
+        mCache.put(key, description);
+    }
+
+    /**
+     * Fetches a description in the background, unless a request for the same key is already
+     * running, in which case the callback is just added to that one.
+     *
+     * @param key
+     *            A key created by {@link #key(String, String)}.
+     * @param location
+     *            The URL of the description.
+     * @param callback
+     *            Receives the result.
+     */
+    void fetch(final String key, final String location, Callback callback) {
+        synchronized (this) {
+            List<Callback> callbacks = mInFlight.get(key);
+
+            if (callbacks != null) {
+                callbacks.add(callback);
+                return;
+            }
+
+            callbacks = new ArrayList<Callback>();
+            callbacks.add(callback);
+            mInFlight.put(key, callbacks);
+        }
+
+        try {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        finish(key, parse(download(location)), null);
+                    } catch (IOException | XmlPullParserException | JSONException e) {
+                        finish(key, null, "Fetching " + location + " failed: " + e.getMessage());
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            finish(key, null, "Too many descriptions to fetch.");
+        }
+    }
+
+    private void finish(String key, JSONObject description, String error) {
+        List<Callback> callbacks;
+
+        synchronized (this) {
+            callbacks = mInFlight.remove(key);
+
+            if (description != null) mCache.put(key, description);
+        }
+
+        if (callbacks == null) return;
+
+        for (Callback callback : callbacks) {
+            callback.onDescription(description, error);
+        }
+    }
+
+    /**
+     * @param location
+     *            The URL of a description.
+     * @return the complete body.
+     * @throws IOException on networking errors, non-200 responses or too big documents.
+     */
+    private static byte[] download(String location) throws IOException {
+        URL url = new URL(location);
+
+        if (!"http".equals(url.getProtocol()) && !"https".equals(url.getProtocol())) {
+            throw new IOException("Unsupported protocol.");
+        }
+
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT);
+        connection.setReadTimeout(READ_TIMEOUT);
+        connection.setInstanceFollowRedirects(false);
+        connection.setUseCaches(false);
+
+        int status = connection.getResponseCode();
+        InputStream in = status == HttpURLConnection.HTTP_OK
+            ? connection.getInputStream() : connection.getErrorStream();
+
+        byte[] buffer = new byte[8192];
+        int length = 0;
+
+        try {
+            if (in == null) throw new IOException("HTTP " + status);
+
+            int read;
+
+            while ((read = in.read(buffer, length, buffer.length - length)) >= 0) {
+                length += read;
+
+                if (length == buffer.length) {
+                    if (length >= MAX_SIZE) {
+                        // Not reading to the end means the connection can't be reused.
+                        connection.disconnect();
+                        throw new IOException("Description too big.");
+                    }
+
+                    byte[] bigger = new byte[Math.min(buffer.length * 2, MAX_SIZE)];
+                    System.arraycopy(buffer, 0, bigger, 0, length);
+                    buffer = bigger;
+                }
+            }
+        } finally {
+            // Closing a completely read stream hands the connection back to the keep-alive
+            // pool.
+            if (in != null) in.close();
+        }
+
+        if (status != HttpURLConnection.HTTP_OK) throw new IOException("HTTP " + status);
+
+        byte[] body = new byte[length];
+        System.arraycopy(buffer, 0, body, 0, length);
+
+        return body;
+    }
+
+    /**
+     * Extracts the fields of the root device and the services of all devices.
+     *
+     * @param xml
+     *            A UPnP device description.
+     * @return {deviceType, friendlyName, manufacturer, ..., services: [{serviceType, serviceId,
+     *         SCPDURL, controlURL, eventSubURL}]}
+     * @throws XmlPullParserException if the XML is malformed.
+     * @throws IOException if reading the XML fails.
+     * @throws JSONException if building the result fails. This should not happen.
+     */
+    JSONObject parse(byte[] xml) throws XmlPullParserException, IOException, JSONException {
+        XmlPullParser parser;
+
+        synchronized (this) {
+            if (mFactory == null) mFactory = XmlPullParserFactory.newInstance();
+
+            parser = mFactory.newPullParser();
+        }
+
+        parser.setInput(new ByteArrayInputStream(xml), null);
+
+        JSONObject device = new JSONObject();
+        JSONArray services = new JSONArray();
+        JSONObject service = null;
+        int deviceDepth = 0;
+        List<String> elements = new ArrayList<String>();
+
+        for (int event = parser.getEventType(); event != XmlPullParser.END_DOCUMENT;
+             event = parser.next()) {
+
+            if (event == XmlPullParser.START_TAG) {
+                String name = localName(parser.getName());
+                String parent = elements.isEmpty() ? null : elements.get(elements.size() - 1);
+
+                if (service != null && "service".equals(parent)
+                    && contains(SERVICE_FIELDS, name)) {
+
+                    // Consumes the end tag, too.
+                    service.put(name, parser.nextText().trim());
+                }
+                else if (deviceDepth == 1 && "device".equals(parent)
+                    && contains(DEVICE_FIELDS, name)) {
+
+                    device.put(name, parser.nextText().trim());
+                }
+                else {
+                    elements.add(name);
+
+                    if ("device".equals(name)) deviceDepth++;
+
+                    if ("service".equals(name)) service = new JSONObject();
+                }
+            }
+            else if (event == XmlPullParser.END_TAG && !elements.isEmpty()) {
+                String name = elements.remove(elements.size() - 1);
+
+                if ("device".equals(name)) deviceDepth--;
+
+                if ("service".equals(name) && service != null) {
+                    services.put(service);
+                    service = null;
+                }
+            }
+        }
+
+        device.put("services", services);
+
+        return device;
+    }
+
+    private static String localName(String name) {
+        return name.substring(name.indexOf(':') + 1);
+    }
+
+    private static boolean contains(String[] names, String name) {
+        for (String candidate : names) {
+            if (candidate.equals(name)) return true;
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,241 @@
+package com.scott.plugin;
+
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * <p>
+ * Bounded cache of SSDP answers, keyed by USN.
+ * </p>
+ * <p>
+ * Entries expire after the time announced in the "CACHE-CONTROL: max-age" header of the answer.
+ * When the capacity is reached, the least recently seen device is evicted.
+ * </p>
+ * <p>
+ * All methods are thread-safe.
+ * </p>
+ */
+class DeviceCache {
+
+    static final int DEFAULT_CAPACITY = 1024;
+
+    /**
+     * Used, when an answer doesn't contain a usable max-age. 1800 seconds is the minimum
+     * recommended by the UPnP Device Architecture.
+     */
+    static final long DEFAULT_MAX_AGE = 1800;
+
+    private static final String MAX_AGE = "max-age";
+
+    private final int mCapacity;
+    private final LinkedHashMap<String, Device> mDevices;
+
+    /**
+     * @param capacity
+     *            The maximum number of devices to remember.
+     */
+    DeviceCache(final int capacity) {
+        mCapacity = capacity;
+
+        mDevices = new LinkedHashMap<String, Device>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Device> eldest) {
+                return size() > mCapacity;
+            }
+        };
+    }
+
+    /**
+     * Adds or refreshes a device.
+     *
+     * @param usn
+     *            The USN of the device.
+     * @param answer
+     *            The answer of the device.
+     * @param maxAge
+     *            The time in seconds, the answer stays valid.
+     * @param now
+     *            The current time in milliseconds of a monotonic clock.
+     * @return true, if the device was unknown, its last answer had already expired, it was
+     *         only known from the warm-start cache or it rebooted (its BOOTID.UPNP.ORG changed).
+     *         In other words: if the answer should be reported.
+     */
+    synchronized boolean put(String usn, SsdpMessage answer, long maxAge, long now) {
+        Device device = mDevices.get(usn);
+        boolean isNew = device == null || device.expires <= now || device.cached
+            || (answer.bootId != null && device.answer.bootId != null
+                && !answer.bootId.equals(device.answer.bootId));
+
+        if (device == null) {
+            device = new Device();
+            mDevices.put(usn, device);
+        }
+
+        device.answer = answer;
+        device.expires = now + maxAge * 1000;
+        device.cached = false;
+
+        return isNew;
+    }
+
+    /**
+     * @param usn
+     *            The USN of a device.
+     * @param now
+     *            The current time in milliseconds of a monotonic clock.
+     * @return true, if a live answer of the device is known, which didn't expire, yet.
+     */
+    synchronized boolean isKnown(String usn, long now) {
+        Device device = mDevices.get(usn);
+
+        return device != null && device.expires > now && !device.cached;
+    }
+
+    /**
+     * Adds a device from the warm-start cache, unless it's already known. The next live answer
+     * of the device will be reported again, to confirm it.
+     *
+     * @param device
+     *            A device from {@link #snapshot(long)} or a {@link DeviceStore}.
+     * @param now
+     *            The current time in milliseconds of a monotonic clock.
+     * @return true, if the device was unknown or expired and should be reported as cached.
+     */
+    synchronized boolean putCached(Device device, long now) {
+        Device known = mDevices.get(device.answer.usn);
+
+        if (known != null && known.expires > now) return false;
+
+        Device cached = new Device();
+        cached.answer = device.answer;
+        cached.expires = device.expires;
+        cached.cached = true;
+
+        mDevices.put(device.answer.usn, cached);
+
+        return true;
+    }
+
+    /**
+     * @param now
+     *            The current time in milliseconds of a monotonic clock.
+     * @return copies of all devices, which are not expired.
+     */
+    synchronized List<Device> snapshot(long now) {
+        List<Device> devices = new ArrayList<Device>(mDevices.size());
+
+        for (Device device : mDevices.values()) {
+            if (device.expires <= now) continue;
+
+            Device copy = new Device();
+            copy.answer = device.answer;
+            copy.expires = device.expires;
+            copy.cached = device.cached;
+
+            devices.add(copy);
+        }
+
+        return devices;
+    }
+
+    /**
+     * Removes a device, e.g. because it sent an "ssdp:byebye".
+     *
+     * @param usn
+     *            The USN of the device.
+     * @return true, if the device was known.
+     */
+    synchronized boolean remove(String usn) {
+        return mDevices.remove(usn) != null;
+    }
+
+    /**
+     * Removes all expired devices.
+     *
+     * @param now
+     *            The current time in milliseconds of a monotonic clock.
+     */
+    synchronized void purge(long now) {
+        Iterator<Device> i = mDevices.values().iterator();
+
+        while (i.hasNext()) {
+            if (i.next().expires <= now) i.remove();
+        }
+    }
+
+    synchronized void clear() {
+        mDevices.clear();
+    }
+
+    synchronized int size() {
+        return mDevices.size();
+    }
+
+    /**
+     * Extracts the max-age directive from a CACHE-CONTROL header value.
+     *
+     * @param cacheControl
+     *            The value of a CACHE-CONTROL header. May be null.
+     * @return the max-age in seconds or {@link #DEFAULT_MAX_AGE}, if none could be found.
+     */
+    static long parseMaxAge(String cacheControl) {
+        if (cacheControl == null) return DEFAULT_MAX_AGE;
+
+        int i = cacheControl.toLowerCase(Locale.US).indexOf(MAX_AGE);
+
+        if (i < 0) return DEFAULT_MAX_AGE;
+
+        i += MAX_AGE.length();
+
+        int length = cacheControl.length();
+
+        while (i < length && (cacheControl.charAt(i) == ' ' || cacheControl.charAt(i) == '=')) {
+            i++;
+        }
+
+        long maxAge = 0;
+        int start = i;
+
+        while (i < length && Character.isDigit(cacheControl.charAt(i))
+            && maxAge < Integer.MAX_VALUE) {
+
+            maxAge = maxAge * 10 + (cacheControl.charAt(i++) - '0');
+        }
+
+        return i > start ? maxAge : DEFAULT_MAX_AGE;
+    }
+
+    /**
+     * A device in the cache.
+     */
+    static class Device {
+
+        /**
+         * The last answer of the device.
+         */
+        SsdpMessage answer;
+
+        /**
+         * When the answer expires in milliseconds of a monotonic clock.
+         */
+        long expires;
+
+        /**
+         * True, if the device is only known from the warm-start cache and wasn't confirmed by a
+         * live answer, yet.
+         */
+        boolean cached;
+
+        /**
+         * The description of the device for its CONFIGID.UPNP.ORG, if it was fetched. Only set
+         * on the way to and from a {@link DeviceStore}.
+         */
+        JSONObject description;
+    }
+}
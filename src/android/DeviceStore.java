@@ -0,0 +1,192 @@
+package com.scott.plugin;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>
+ * Persists known devices to a compact binary file, so they can be shown immediately after the
+ * next app launch, before any device had a chance to answer.
+ * </p>
+ * <p>
+ * Per device, the type of the answer, the sender address and network interface, whether it came
+ * from mDNS, all headers (which include USN, LOCATION and BOOTID.UPNP.ORG), the expiry and the
+ * fetched description, if any, are stored. Descriptions are only valid for the stored
+ * CONFIGID.UPNP.ORG header. Expiries are converted between the monotonic clock used at runtime
+ * and wall-clock time on disk. Expired devices are skipped.
+ * </p>
+ * <p>
+ * Files are written to a temporary file first and then renamed, so a crash while saving never
+ * leaves a broken file behind.
+ * </p>
+ */
+class DeviceStore {
+
+    private static final int MAGIC = 0x53534450; // "SSDP"
+    private static final int VERSION = 4;
+
+    private final File mFile;
+
+    /**
+     * @param file
+     *            The file to load from and save to.
+     */
+    DeviceStore(File file) {
+        mFile = file;
+    }
+
+    /**
+     * @param devices
+     *            The devices to store.
+     * @param now
+     *            The current time in milliseconds of the monotonic clock used for the expiries.
+     * @throws IOException if writing fails.
+     */
+    void save(List<DeviceCache.Device> devices, long now) throws IOException {
+        File tmp = new File(mFile.getPath() + ".tmp");
+        long offset = System.currentTimeMillis() - now;
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+            new FileOutputStream(tmp)));
+
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(devices.size());
+
+            for (DeviceCache.Device device : devices) {
+                SsdpMessage answer = device.answer;
+
+                out.writeLong(device.expires + offset);
+                out.writeUTF(answer.type != null ? answer.type : "");
+                out.writeUTF(answer.source != null ? answer.source.getHostAddress() : "");
+                out.writeUTF(answer.networkInterface != null ? answer.networkInterface : "");
+                out.writeBoolean(answer.mdns);
+                out.writeShort(answer.size());
+
+                for (int i = 0; i < answer.size(); i++) {
+                    out.writeUTF(answer.key(i));
+                    out.writeUTF(answer.value(i));
+                }
+
+                // Can be longer than writeUTF() allows.
+                byte[] description = device.description != null
+                    ? device.description.toString().getBytes(StandardCharsets.UTF_8)
+                    : new byte[0];
+
+                out.writeInt(description.length);
+                out.write(description);
+            }
+        } finally {
+            out.close();
+        }
+
+        if (!tmp.renameTo(mFile)) throw new IOException("Can't rename " + tmp + "!");
+    }
+
+    /**
+     * @param now
+     *            The current time in milliseconds of the monotonic clock used at runtime.
+     * @return the stored devices, which are not expired, yet. Empty, if there's no file or it
+     *         can't be read.
+     */
+    List<DeviceCache.Device> load(long now) {
+        List<DeviceCache.Device> devices = new ArrayList<DeviceCache.Device>();
+        long offset = System.currentTimeMillis() - now;
+
+        DataInputStream in;
+
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+        } catch (FileNotFoundException e) {
+            return devices;
+        }
+
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) return devices;
+
+            int count = in.readInt();
+
+            for (int i = 0; i < count; i++) {
+                DeviceCache.Device device = new DeviceCache.Device();
+                device.expires = in.readLong() - offset;
+
+                SsdpMessage answer = new SsdpMessage();
+
+                String type = in.readUTF();
+                if (type.length() > 0) answer.type = type;
+
+                String source = in.readUTF();
+
+                if (source.length() > 0) {
+                    try {
+                        // Always a literal, so this doesn't do a DNS lookup.
+                        answer.source = InetAddress.getByName(source);
+                    } catch (UnknownHostException e) {
+                        // IPv6 address with the scope of an interface, which is gone.
+                    }
+                }
+
+                String networkInterface = in.readUTF();
+                if (networkInterface.length() > 0) answer.networkInterface = networkInterface;
+
+                answer.mdns = in.readBoolean();
+
+                int size = in.readUnsignedShort();
+
+                for (int j = 0; j < size; j++) {
+                    answer.add(in.readUTF(), in.readUTF());
+                }
+
+                int length = in.readInt();
+
+                if (length < 0 || length > DescriptionFetcher.MAX_SIZE) {
+                    throw new IOException("Invalid description length " + length + ".");
+                }
+
+                byte[] description = new byte[length];
+                in.readFully(description);
+
+                if (description.length > 0) {
+                    try {
+                        device.description = new JSONObject(new String(description,
+                            StandardCharsets.UTF_8));
+                    } catch (JSONException e) {
+                        // Broken. It's fetched again, when needed.
+                    }
+                }
+
+                device.answer = answer;
+                device.cached = true;
+
+                if (device.expires > now && answer.usn != null) devices.add(device);
+            }
+        } catch (IOException e) {
+            // Broken or from an incompatible version. Use what we got, it'll be overwritten.
+            SsdpLog.w(SsdpLog.TAG, "Can't read " + mFile + ".", e);
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // Ignore, closing anyway.
+            }
+        }
+
+        return devices;
+    }
+}
@@ -0,0 +1,338 @@
+package com.scott.plugin;
+
+import java.net.InetAddress;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * <p>
+ * A DNS message as used by mDNS (RFC 6762): Parsed from a datagram by {@link DnsParser} or
+ * built as a query by {@link MdnsBrowser} and encoded with {@link #encode(ByteBuffer)}.
+ * </p>
+ * <p>
+ * Names are kept in presentation format: Labels joined by dots, with dots and backslashes
+ * inside labels escaped by a backslash, since DNS-SD instance names may contain any character.
+ * </p>
+ */
+class DnsMessage {
+
+    static final int TYPE_A = 1;
+    static final int TYPE_PTR = 12;
+    static final int TYPE_TXT = 16;
+    static final int TYPE_AAAA = 28;
+    static final int TYPE_SRV = 33;
+
+    static final int CLASS_IN = 1;
+
+    static final int FLAG_RESPONSE = 0x8000;
+
+    /**
+     * The top bit of the class of a record: The record replaces all others with the same name
+     * and type. (RFC 6762, section 10.2)
+     */
+    static final int CACHE_FLUSH = 0x8000;
+
+    static final int HEADER_SIZE = 12;
+
+    int id;
+    int flags;
+
+    final List<Question> questions = new ArrayList<Question>();
+
+    /**
+     * The records of all sections of a parsed message. When encoding a query, the known answers.
+     */
+    final List<Record> records = new ArrayList<Record>();
+
+    /**
+     * @return true, if this is a response, false for a query.
+     */
+    boolean isResponse() {
+        return (flags & FLAG_RESPONSE) != 0;
+    }
+
+    /**
+     * <p>
+     * Encodes this message as a query: The questions and, in the answer section, the records as
+     * known answers. Names are compressed.
+     * </p>
+     * <p>
+     * Questions and records, which don't fit into the buffer anymore, are left out. Known answers
+     * are an optimization, so the responders just answer a little more. Callers limit the
+     * questions, so they fit. Questions and records with names, which can't be encoded, e.g. with
+     * too long labels, are skipped.
+     * </p>
+     *
+     * @param out
+     *            Receives the message. Must at least hold the header.
+     * @return the number of records, which fit.
+     */
+    int encode(ByteBuffer out) {
+        Map<String, Integer> offsets = new HashMap<String, Integer>();
+        int start = out.position();
+
+        out.putShort((short) id);
+        out.putShort((short) flags);
+        out.putShort((short) 0);
+        out.putShort((short) 0);
+        out.putShort((short) 0);
+        out.putShort((short) 0);
+
+        int count = 0;
+
+        for (Question question : questions) {
+            int position = out.position();
+            Map<String, Integer> saved = new HashMap<String, Integer>(offsets);
+
+            try {
+                writeName(out, question.name, offsets, start);
+                out.putShort((short) question.type);
+                out.putShort((short) CLASS_IN);
+                count++;
+            } catch (BufferOverflowException e) {
+                out.position(position);
+                offsets = saved;
+                break;
+            } catch (IllegalArgumentException e) {
+                // A name, which can't be encoded. Skipped.
+                out.position(position);
+                offsets = saved;
+            }
+        }
+
+        out.putShort(start + 4, (short) count);
+
+        count = 0;
+
+        for (Record record : records) {
+            int position = out.position();
+            Map<String, Integer> saved = new HashMap<String, Integer>(offsets);
+
+            try {
+                record.write(out, offsets, start);
+                count++;
+            } catch (BufferOverflowException e) {
+                // Roll back the partial record and its compression targets.
+                out.position(position);
+                offsets = saved;
+                break;
+            } catch (IllegalArgumentException e) {
+                // A name, which can't be encoded. Skipped.
+                out.position(position);
+                offsets = saved;
+            }
+        }
+
+        out.putShort(start + 6, (short) count);
+
+        return count;
+    }
+
+    /**
+     * Writes a name. Each suffix, which was already written, is replaced by a pointer to it.
+     *
+     * @param out
+     *            Receives the name.
+     * @param name
+     *            A name in presentation format.
+     * @param offsets
+     *            The offsets of the suffixes written so far, relative to the message. Updated.
+     * @param start
+     *            The position of the message in the buffer.
+     */
+    static void writeName(ByteBuffer out, String name, Map<String, Integer> offsets, int start) {
+        List<String> labels = labels(name);
+
+        for (int i = 0; i < labels.size(); i++) {
+            String suffix = suffix(labels, i);
+            Integer offset = offsets.get(suffix);
+
+            if (offset != null) {
+                out.putShort((short) (0xC000 | offset));
+                return;
+            }
+
+            int position = out.position() - start;
+
+            if (position < 0x4000) offsets.put(suffix, position);
+
+            byte[] label = labels.get(i).getBytes(StandardCharsets.UTF_8);
+
+            if (label.length > 63) throw new IllegalArgumentException("Label too long: " + name);
+
+            out.put((byte) label.length);
+            out.put(label);
+        }
+
+        out.put((byte) 0);
+    }
+
+    /**
+     * @param name
+     *            A name in presentation format.
+     * @return its labels, unescaped.
+     */
+    static List<String> labels(String name) {
+        List<String> labels = new ArrayList<String>();
+        StringBuilder label = new StringBuilder();
+
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+
+            if (c == '\\' && i + 1 < name.length()) {
+                label.append(name.charAt(++i));
+            }
+            else if (c == '.') {
+                if (label.length() > 0) labels.add(label.toString());
+
+                label.setLength(0);
+            }
+            else {
+                label.append(c);
+            }
+        }
+
+        if (label.length() > 0) labels.add(label.toString());
+
+        return labels;
+    }
+
+    /**
+     * @param label
+     *            A label as received.
+     * @return the label in presentation format.
+     */
+    static String escape(String label) {
+        if (label.indexOf('.') < 0 && label.indexOf('\\') < 0) return label;
+
+        return label.replace("\\", "\\\\").replace(".", "\\.");
+    }
+
+    /**
+     * DNS names compare case-insensitively. Labels are separated by a character, which no
+     * sensible label contains, so suffixes of differently split names can't collide.
+     */
+    private static String suffix(List<String> labels, int from) {
+        StringBuilder suffix = new StringBuilder();
+
+        for (int i = from; i < labels.size(); i++) {
+            suffix.append(labels.get(i).toLowerCase(Locale.US)).append('\0');
+        }
+
+        return suffix.toString();
+    }
+
+    /**
+     * A question of a query.
+     */
+    static class Question {
+
+        final String name;
+        final int type;
+
+        Question(String name, int type) {
+            this.name = name;
+            this.type = type;
+        }
+    }
+
+    /**
+     * A resource record. Only the data of the types used by DNS-SD is parsed.
+     */
+    static class Record {
+
+        String name;
+        int type;
+        boolean cacheFlush;
+
+        /**
+         * The time to live in seconds. 0 announces, that the record is gone.
+         */
+        long ttl;
+
+        /**
+         * PTR: The instance name. SRV: The host name.
+         */
+        String target;
+
+        int priority;
+        int weight;
+        int port;
+
+        /**
+         * TXT: The strings, usually "key=value".
+         */
+        List<String> txt;
+
+        /**
+         * A and AAAA: The address.
+         */
+        InetAddress address;
+
+        /**
+         * @return the name in lower-case plus the type. Identifies the set of records, a
+         *         cache-flush record replaces.
+         */
+        String setKey() {
+            return name.toLowerCase(Locale.US) + '/' + type;
+        }
+
+        /**
+         * @param other
+         *            A record of the same set.
+         * @return true, if both have the same data, so one refreshes the other.
+         */
+        boolean sameData(Record other) {
+            switch (type) {
+                case TYPE_PTR:
+                    return target.equalsIgnoreCase(other.target);
+
+                case TYPE_SRV:
+                    return port == other.port && priority == other.priority
+                        && weight == other.weight && target.equalsIgnoreCase(other.target);
+
+                case TYPE_TXT:
+                    return txt.equals(other.txt);
+
+                case TYPE_A:
+                case TYPE_AAAA:
+                    return address.equals(other.address);
+
+                default:
+                    return true;
+            }
+        }
+
+        /**
+         * Writes this record. Only PTR records, which is what queries need as known answers.
+         */
+        private void write(ByteBuffer out, Map<String, Integer> offsets, int start) {
+            if (type != TYPE_PTR) throw new IllegalArgumentException("Can't write type " + type);
+
+            writeName(out, name, offsets, start);
+            out.putShort((short) type);
+            out.putShort((short) CLASS_IN);
+            out.putInt((int) ttl);
+
+            int length = out.position();
+            out.putShort((short) 0);
+
+            writeName(out, target, offsets, start);
+
+            out.putShort(length, (short) (out.position() - length - 2));
+        }
+
+        @Override
+        public String toString() {
+            return name + " " + type + " " + ttl + " "
+                + (target != null ? target + (port > 0 ? ":" + port : "")
+                : txt != null ? txt.toString() : String.valueOf(address));
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package com.scott.plugin;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/**
+ * <p>
+ * Parses DNS datagrams, as sent by mDNS responders, into {@link DnsMessage}s. Pure Java, no
+ * Android dependencies.
+ * </p>
+ * <p>
+ * Names may be compressed (RFC 1035, section 4.1.4). Datagrams come from anyone on the link,
+ * so every length and pointer is checked against the datagram and the number of pointers per
+ * name is limited, so a malicious datagram can't make the parser loop or read out of bounds.
+ * </p>
+ * <p>
+ * Labels must be valid UTF-8 (RFC 6762, section 16). Otherwise, the replacement characters would
+ * make names longer, when they are encoded again in queries.
+ * </p>
+ */
+class DnsParser {
+
+    private static final int MAX_POINTERS = 32;
+    private static final int MAX_NAME_LENGTH = 255;
+
+    private final byte[] mData;
+    private final int mLength;
+    private final CharsetDecoder mDecoder = StandardCharsets.UTF_8.newDecoder();
+    private int mPosition;
+
+    private DnsParser(byte[] data, int length) {
+        mData = data;
+        mLength = length;
+    }
+
+    /**
+     * @param data
+     *            The datagram.
+     * @param length
+     *            The length of the datagram in data.
+     * @return the parsed message or null, if the datagram is no valid DNS message.
+     */
+    static DnsMessage parse(byte[] data, int length) {
+        try {
+            return new DnsParser(data, length).parse();
+        } catch (MalformedException e) {
+            return null;
+        }
+    }
+
+    private DnsMessage parse() throws MalformedException {
+        DnsMessage message = new DnsMessage();
+
+        message.id = readShort();
+        message.flags = readShort();
+
+        int questions = readShort();
+        int records = readShort() + readShort() + readShort();
+
+        for (int i = 0; i < questions; i++) {
+            String name = readName();
+            int type = readShort();
+            readShort();
+
+            message.questions.add(new DnsMessage.Question(name, type));
+        }
+
+        for (int i = 0; i < records; i++) {
+            message.records.add(readRecord());
+        }
+
+        return message;
+    }
+
+    private DnsMessage.Record readRecord() throws MalformedException {
+        DnsMessage.Record record = new DnsMessage.Record();
+
+        record.name = readName();
+        record.type = readShort();
+        record.cacheFlush = (readShort() & DnsMessage.CACHE_FLUSH) != 0;
+        record.ttl = readInt() & 0xFFFFFFFFL;
+
+        int length = readShort();
+        int end = mPosition + length;
+
+        check(end);
+
+        switch (record.type) {
+            case DnsMessage.TYPE_PTR:
+                record.target = readName();
+                break;
+
+            case DnsMessage.TYPE_SRV:
+                record.priority = readShort();
+                record.weight = readShort();
+                record.port = readShort();
+                record.target = readName();
+                break;
+
+            case DnsMessage.TYPE_TXT:
+                record.txt = new ArrayList<String>();
+
+                while (mPosition < end) {
+                    int size = mData[mPosition++] & 0xFF;
+
+                    if (mPosition + size > end) throw new MalformedException();
+
+                    if (size > 0) {
+                        record.txt.add(new String(mData, mPosition, size, StandardCharsets.UTF_8));
+                    }
+
+                    mPosition += size;
+                }
+
+                break;
+
+            case DnsMessage.TYPE_A:
+            case DnsMessage.TYPE_AAAA:
+                if (length != (record.type == DnsMessage.TYPE_A ? 4 : 16)) {
+                    throw new MalformedException();
+                }
+
+                byte[] address = new byte[length];
+                System.arraycopy(mData, mPosition, address, 0, length);
+
+                try {
+                    record.address = InetAddress.getByAddress(address);
+                } catch (UnknownHostException e) {
+                    // This should not happen, the length is checked.
+                    throw new MalformedException();
+                }
+
+                break;
+
+            default:
+                // Not needed for DNS-SD, e.g. NSEC. Skipped.
+                break;
+        }
+
+        if (mPosition > end) throw new MalformedException();
+
+        mPosition = end;
+
+        return record;
+    }
+
+    /**
+     * Reads a name, following compression pointers.
+     *
+     * @return the name in presentation format.
+     */
+    private String readName() throws MalformedException {
+        StringBuilder name = new StringBuilder();
+        int position = mPosition;
+        int end = -1;
+        int pointers = 0;
+        int size = 0;
+
+        while (true) {
+            check(position + 1);
+
+            int length = mData[position] & 0xFF;
+
+            if (length == 0) {
+                position++;
+                break;
+            }
+
+            if ((length & 0xC0) == 0xC0) {
+                check(position + 2);
+
+                // The name continues after the first pointer.
+                if (end < 0) end = position + 2;
+
+                if (++pointers > MAX_POINTERS) throw new MalformedException();
+
+                position = ((length & 0x3F) << 8) | (mData[position + 1] & 0xFF);
+
+                continue;
+            }
+
+            // 0x40 and 0x80 are reserved label types.
+            if ((length & 0xC0) != 0) throw new MalformedException();
+
+            check(position + 1 + length);
+
+            size += 1 + length;
+
+            if (size > MAX_NAME_LENGTH) throw new MalformedException();
+
+            if (name.length() > 0) name.append('.');
+
+            try {
+                name.append(DnsMessage.escape(mDecoder.decode(ByteBuffer.wrap(mData,
+                    position + 1, length)).toString()));
+            } catch (CharacterCodingException e) {
+                throw new MalformedException();
+            }
+
+            position += 1 + length;
+        }
+
+        mPosition = end >= 0 ? end : position;
+
+        return name.toString();
+    }
+
+    private int readShort() throws MalformedException {
+        check(mPosition + 2);
+
+        int value = ((mData[mPosition] & 0xFF) << 8) | (mData[mPosition + 1] & 0xFF);
+        mPosition += 2;
+
+        return value;
+    }
+
+    private int readInt() throws MalformedException {
+        return (readShort() << 16) | readShort();
+    }
+
+    private void check(int end) throws MalformedException {
+        if (end > mLength) throw new MalformedException();
+    }
+
+    /**
+     * Thrown, when a datagram is no valid DNS message. Never leaves the parser.
+     */
+    private static class MalformedException extends Exception {
+
+        private static final long serialVersionUID = 1L;
+
+        MalformedException() {
+            // No stack trace, invalid datagrams are expected from time to time.
+            super(null, null, false, false);
+        }
+    }
+}
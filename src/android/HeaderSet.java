@@ -0,0 +1,114 @@
+package com.scott.plugin;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * <p>
+ * Immutable, case-insensitive set of header names, used to project answers to the headers a
+ * {@link Subscription} asked for.
+ * </p>
+ * <p>
+ * {@link #contains(byte[], int, int)} works directly on the received bytes, so
+ * {@link SsdpParser} can skip headers nobody wants without decoding them.
+ * </p>
+ */
+class HeaderSet {
+
+    private final String[] mNames;
+
+    /**
+     * Upper-case ASCII names by length.
+     */
+    private final byte[][][] mByLength;
+
+    /**
+     * @param names
+     *            Header names. Case doesn't matter.
+     */
+    HeaderSet(Collection<String> names) {
+        Set<String> unique = new LinkedHashSet<String>();
+        int maxLength = 0;
+
+        for (String name : names) {
+            String upper = name.trim().toUpperCase(Locale.US);
+
+            if (upper.length() > 0 && unique.add(upper)) {
+                maxLength = Math.max(maxLength, upper.length());
+            }
+        }
+
+        mNames = unique.toArray(new String[unique.size()]);
+        mByLength = new byte[maxLength + 1][][];
+
+        for (int length = 0; length <= maxLength; length++) {
+            List<byte[]> sameLength = new ArrayList<byte[]>();
+
+            for (String name : mNames) {
+                if (name.length() == length) {
+                    sameLength.add(name.getBytes(StandardCharsets.UTF_8));
+                }
+            }
+
+            mByLength[length] = sameLength.toArray(new byte[sameLength.size()][]);
+        }
+    }
+
+    /**
+     * @return the upper-case header names.
+     */
+    String[] names() {
+        return mNames.clone();
+    }
+
+    /**
+     * @param name
+     *            A header name.
+     * @return true, if the name is in this set, ignoring case.
+     */
+    boolean contains(String name) {
+        for (String candidate : mNames) {
+            if (candidate.equalsIgnoreCase(name)) return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * @param data
+     *            A byte buffer.
+     * @param start
+     *            The offset of a header name.
+     * @param end
+     *            The offset after the header name.
+     * @return true, if the name is in this set, ignoring ASCII case.
+     */
+    boolean contains(byte[] data, int start, int end) {
+        int length = end - start;
+
+        if (length >= mByLength.length) return false;
+
+        for (byte[] name : mByLength[length]) {
+            int i = 0;
+
+            while (i < length) {
+                int b = data[start + i];
+
+                if (b >= 'a' && b <= 'z') b -= 'a' - 'A';
+
+                if (b != name[i]) break;
+
+                i++;
+            }
+
+            if (i == length) return true;
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,126 @@
+package com.scott.plugin;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>
+ * Lock-free histogram of non-negative long values with logarithmic buckets, in the spirit of
+ * HdrHistogram: Every power of two is split into {@link #SUB_BUCKETS} linear buckets, so
+ * percentiles are accurate to about 12.5% over the whole range of long, with a fixed memory
+ * footprint of a few kilobytes.
+ * </p>
+ * <p>
+ * {@link #record(long)} is safe to call from any thread and doesn't allocate. Snapshots taken
+ * concurrently may be slightly inconsistent, which is fine for statistics.
+ * </p>
+ */
+class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    /**
+     * @param value
+     *            The value to record. Negative values are recorded as 0.
+     */
+    void record(long value) {
+        if (value < 0) value = 0;
+
+        mBuckets.incrementAndGet(index(value));
+        mCount.incrementAndGet();
+        mSum.addAndGet(value);
+
+        long max;
+
+        while (value > (max = mMax.get()) && !mMax.compareAndSet(max, value)) {
+            // Somebody else recorded a new maximum in the meantime, try again.
+        }
+    }
+
+    long count() {
+        return mCount.get();
+    }
+
+    /**
+     * @param percentile
+     *            A percentile between 0 and 100.
+     * @return the highest value of the bucket containing the percentile, at most the maximum
+     *         recorded value, or 0, if nothing was recorded.
+     */
+    long percentile(double percentile) {
+        long count = mCount.get();
+
+        if (count < 1) return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long seen = 0;
+
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += mBuckets.get(i);
+
+            if (seen >= rank) return Math.min(highestValue(i), mMax.get());
+        }
+
+        return mMax.get();
+    }
+
+    /**
+     * @return count, mean, 50th, 90th and 99th percentile and maximum of the recorded values.
+     */
+    JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+        long count = mCount.get();
+
+        try {
+            json.put("count", count);
+            json.put("mean", count > 0 ? mSum.get() / count : 0);
+            json.put("p50", percentile(50));
+            json.put("p90", percentile(90));
+            json.put("p99", percentile(99));
+            json.put("max", mMax.get());
+        } catch (JSONException e) {
+            // This should not happen.
+            e.printStackTrace();
+        }
+
+        return json;
+    }
+
+    /**
+     * @param value
+     *            A non-negative value.
+     * @return the index of the bucket for that value.
+     */
+    private static int index(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+
+        return SUB_BUCKETS + shift * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    /**
+     * @param index
+     *            The index of a bucket.
+     * @return the highest value, which falls into that bucket.
+     */
+    private static long highestValue(int index) {
+        if (index < SUB_BUCKETS) return index;
+
+        int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+        long subBucket = SUB_BUCKETS + (index - SUB_BUCKETS) % SUB_BUCKETS;
+
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,636 @@
+package com.scott.plugin;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * <p>
+ * DNS-SD browsing over mDNS (RFC 6762 and 6763) for the {@link SsdpEngine}: Encodes the
+ * queries, keeps the received records in a cache, until their TTL expires, and resolves
+ * service instances from them.
+ * </p>
+ * <p>
+ * An instance is resolved, when its SRV record and an address of its host are known. Then it's
+ * handed to the engine as an {@link SsdpMessage} of type RESPONSE, so it goes through the same
+ * routing, filtering, deduplication and delivery as SSDP answers: ST is the service type, USN
+ * the instance name and CACHE-CONTROL the TTL of its PTR record. NAME, HOSTNAME, PORT, ADDRESS
+ * and the TXT entries as "TXT.key" complete it. A goodbye (TTL 0) becomes an "ssdp:byebye"
+ * NOTIFY. Changes of the SRV, TXT or addresses of a known instance are reported again, like a
+ * reboot of an SSDP device.
+ * </p>
+ * <p>
+ * Queries carry the PTR records, which are still valid for more than half their TTL, as known
+ * answers, so responders don't send them again (RFC 6762, section 7.1). Instances, which are
+ * missing records, are asked for them directly, a few times.
+ * </p>
+ * <p>
+ * Only touched by the background thread of the engine.
+ * </p>
+ */
+class MdnsBrowser {
+
+    static final String ADDRESS = "224.0.0.251";
+    static final String ADDRESS_IPV6 = "FF02::FB";
+    static final int PORT = 5353;
+
+    /**
+     * mDNS datagrams are sent with an IP TTL of 255. (RFC 6762, section 11)
+     */
+    static final int MULTICAST_TTL = 255;
+
+    /**
+     * Fits into a typical MTU of 1500 bytes with IPv6 and UDP headers. Known answers, which
+     * don't fit, are left out.
+     */
+    static final int MAX_QUERY_SIZE = 1400;
+
+    /**
+     * The first interval between two browse queries and its ceiling in milliseconds. The
+     * interval doubles with every query. (RFC 6762, section 5.2)
+     */
+    static final int QUERY_INTERVAL = 1000;
+    static final int MAX_QUERY_INTERVAL = 60 * 60 * 1000;
+
+    private static final int CAPACITY = 4096;
+    private static final int RESOLVE_INTERVAL = 1000;
+    private static final int RESOLVE_ATTEMPTS = 3;
+
+    /**
+     * The number of instances asked for per resolve query. Two questions each, so the names fit
+     * into {@link #MAX_QUERY_SIZE}, unless they are extremely long. The others are asked right
+     * after.
+     */
+    private static final int RESOLVE_INSTANCES = 8;
+
+    /**
+     * Records replaced by a cache-flush record are kept for one second, since the other
+     * records of the set might be in the next datagram. Goodbyes, too. (RFC 6762, section 10)
+     */
+    private static final int FLUSH_DELAY = 1000;
+
+    /**
+     * "_service._tcp" or "_service._udp", optionally with subtype, ".local" and a trailing dot.
+     */
+    private static final Pattern SERVICE_TYPE = Pattern.compile(
+        "(_[^.]+\\.)+_(tcp|udp)(\\.local)?\\.?", Pattern.CASE_INSENSITIVE);
+
+    private static final String LOCAL = ".local";
+
+    private static InetSocketAddress[] sGroups;
+
+    /**
+     * A cached record.
+     */
+    private static class CachedRecord {
+
+        final DnsMessage.Record record;
+        final long received;
+        long expires;
+
+        CachedRecord(DnsMessage.Record record, long received) {
+            this.record = record;
+            this.received = received;
+            expires = received + record.ttl * 1000;
+        }
+    }
+
+    /**
+     * A service instance seen in a PTR record of a browsed service type.
+     */
+    private static class Instance {
+
+        final String name;
+        final String serviceType;
+        String networkInterface;
+
+        /**
+         * True, once the SRV record and an address were known.
+         */
+        boolean resolved;
+
+        long asked;
+        int attempts;
+
+        Instance(String name, String serviceType) {
+            this.name = name;
+            this.serviceType = serviceType;
+        }
+    }
+
+    private final SsdpStats mStats;
+
+    /**
+     * Record sets by name and type, see {@link DnsMessage.Record#setKey()}. The least recently
+     * used sets are evicted, when the capacity is reached.
+     */
+    private final LinkedHashMap<String, List<CachedRecord>> mRecords =
+        new LinkedHashMap<String, List<CachedRecord>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, List<CachedRecord>> eldest) {
+                return size() > CAPACITY;
+            }
+        };
+
+    /**
+     * Instances by lower-case name.
+     */
+    private final Map<String, Instance> mInstances = new LinkedHashMap<String, Instance>();
+    private Set<String> mServiceTypes = Collections.emptySet();
+
+    /**
+     * @param stats
+     *            Receives the number of queries and known answers sent.
+     */
+    MdnsBrowser(SsdpStats stats) {
+        mStats = stats;
+    }
+
+    /**
+     * @param serviceType
+     *            A service type as given by a listener.
+     * @return the canonical form, e.g. "_googlecast._tcp.local", if it's a DNS-SD service
+     *         type, otherwise null.
+     */
+    static String serviceType(String serviceType) {
+        if (!SERVICE_TYPE.matcher(serviceType).matches()) return null;
+
+        String canonical = serviceType.toLowerCase(Locale.US);
+
+        if (canonical.endsWith(".")) canonical = canonical.substring(0, canonical.length() - 1);
+
+        return canonical.endsWith(LOCAL) ? canonical : canonical + LOCAL;
+    }
+
+    /**
+     * @param ipv6
+     *            True for IPv6, false for IPv4.
+     * @return the socket address of the mDNS group of that family.
+     * @throws IOException never, the groups are literals.
+     */
+    static synchronized InetSocketAddress group(boolean ipv6) throws IOException {
+        if (sGroups == null) {
+            sGroups = new InetSocketAddress[] {
+                new InetSocketAddress(InetAddress.getByName(ADDRESS), PORT),
+                new InetSocketAddress(InetAddress.getByName(ADDRESS_IPV6), PORT),
+            };
+        }
+
+        return sGroups[ipv6 ? 1 : 0];
+    }
+
+    /**
+     * @param serviceTypes
+     *            The canonical service types, which any subscription browses. Instances of
+     *            others are not resolved. Their PTR records are dropped, too, so they are not
+     *            sent as known answers, when they are browsed again.
+     */
+    void setServiceTypes(Set<String> serviceTypes) {
+        for (String serviceType : mServiceTypes) {
+            if (!serviceTypes.contains(serviceType)) {
+                mRecords.remove(serviceType + '/' + DnsMessage.TYPE_PTR);
+            }
+        }
+
+        mServiceTypes = serviceTypes;
+
+        Iterator<Instance> instances = mInstances.values().iterator();
+
+        while (instances.hasNext()) {
+            if (!serviceTypes.contains(instances.next().serviceType)) instances.remove();
+        }
+    }
+
+    /**
+     * @param serviceTypes
+     *            The canonical service types to browse.
+     * @param now
+     *            The current time in milliseconds of a monotonic clock.
+     * @return a query for the PTR records of the service types with the known answers.
+     */
+    ByteBuffer query(Collection<String> serviceTypes, long now) {
+        DnsMessage query = new DnsMessage();
+
+        for (String serviceType : serviceTypes) {
+            query.questions.add(new DnsMessage.Question(serviceType, DnsMessage.TYPE_PTR));
+
+            List<CachedRecord> entries = mRecords.get(serviceType + '/' + DnsMessage.TYPE_PTR);
+
+            if (entries == null) continue;
+
+            for (CachedRecord entry : entries) {
+                long remaining = entry.expires - now;
+
+                // Only, if the responder wouldn't refresh it anyway.
+                if (remaining * 2 <= entry.record.ttl * 1000) continue;
+
+                DnsMessage.Record known = new DnsMessage.Record();
+                known.name = entry.record.name;
+                known.type = DnsMessage.TYPE_PTR;
+                known.ttl = remaining / 1000;
+                known.target = entry.record.target;
+
+                query.records.add(known);
+            }
+        }
+
+        ByteBuffer datagram = ByteBuffer.allocate(MAX_QUERY_SIZE);
+
+        mStats.mdnsKnownAnswers.addAndGet(query.encode(datagram));
+        datagram.flip();
+
+        return datagram;
+    }
+
+    /**
+     * @param now
+     *            The current time in milliseconds of a monotonic clock.
+     * @return a query for the missing records of instances, which can't be resolved, yet, or
+     *         null, if none needs to be asked right now.
+     */
+    ByteBuffer resolveQuery(long now) {
+        DnsMessage query = null;
+        int instances = 0;
+
+        for (Instance instance : mInstances.values()) {
+            if (instances >= RESOLVE_INSTANCES) break;
+
+            if (instance.resolved || instance.attempts >= RESOLVE_ATTEMPTS
+                || now - instance.asked < RESOLVE_INTERVAL) {
+
+                continue;
+            }
+
+            DnsMessage.Record srv = first(instance.name, DnsMessage.TYPE_SRV, now);
+
+            if (srv != null && !addresses(srv.target, now).isEmpty()) {
+                // Nothing to ask. Otherwise, nextResolve() would stay in the past.
+                instance.resolved = true;
+                continue;
+            }
+
+            if (query == null) query = new DnsMessage();
+
+            if (srv == null) {
+                query.questions.add(new DnsMessage.Question(instance.name, DnsMessage.TYPE_SRV));
+                query.questions.add(new DnsMessage.Question(instance.name, DnsMessage.TYPE_TXT));
+            }
+            else {
+                query.questions.add(new DnsMessage.Question(srv.target, DnsMessage.TYPE_A));
+                query.questions.add(new DnsMessage.Question(srv.target, DnsMessage.TYPE_AAAA));
+            }
+
+            instance.asked = now;
+            instance.attempts++;
+            instances++;
+        }
+
+        if (query == null) return null;
+
+        ByteBuffer datagram = ByteBuffer.allocate(MAX_QUERY_SIZE);
+        query.encode(datagram);
+        datagram.flip();
+
+        return datagram;
+    }
+
+    /**
+     * @return the time in milliseconds of a monotonic clock, when {@link #resolveQuery(long)}
+     *         has to be called next, or {@link Long#MAX_VALUE}. Each call of
+     *         {@link #resolveQuery(long)} moves it past that call.
+     */
+    long nextResolve() {
+        long next = Long.MAX_VALUE;
+
+        for (Instance instance : mInstances.values()) {
+            if (!instance.resolved && instance.attempts < RESOLVE_ATTEMPTS) {
+                next = Math.min(next, instance.asked + RESOLVE_INTERVAL);
+            }
+        }
+
+        return next;
+    }
+
+    /**
+     * Adds the records of a response to the cache and resolves the instances they touch. Like
+     * repeated SSDP answers, instances are reported again and again, the caches of the
+     * subscriptions drop the duplicates.
+     *
+     * @param message
+     *            A parsed datagram. Queries are ignored.
+     * @param networkInterface
+     *            The name of the interface it was received on. May be null.
+     * @param now
+     *            The current time in milliseconds of a monotonic clock.
+     * @return the resolved and gone instances as messages for
+     *         {@link SsdpEngine#result(SsdpMessage)}. Empty, if none.
+     */
+    List<SsdpMessage> received(DnsMessage message, String networkInterface, long now) {
+        if (!message.isResponse()) return Collections.emptyList();
+
+        List<SsdpMessage> results = new ArrayList<SsdpMessage>();
+        Set<String> touched = new HashSet<String>();
+
+        for (DnsMessage.Record record : message.records) {
+            if (record.cacheFlush) flush(record, now);
+        }
+
+        for (DnsMessage.Record record : message.records) {
+            if (record.name.length() == 0) continue;
+
+            touched.add(record.name.toLowerCase(Locale.US));
+
+            if (record.type == DnsMessage.TYPE_PTR) {
+                String serviceType = record.name.toLowerCase(Locale.US);
+
+                if (!mServiceTypes.contains(serviceType)) continue;
+
+                String key = record.target.toLowerCase(Locale.US);
+                Instance instance = mInstances.get(key);
+
+                if (record.ttl == 0) {
+                    if (instance != null) {
+                        mInstances.remove(key);
+                        results.add(goodbye(instance));
+                    }
+                }
+                else if (instance == null) {
+                    instance = new Instance(record.target, serviceType);
+                    // Responders usually send the other records along. Give them a moment.
+                    instance.asked = now;
+                    mInstances.put(key, instance);
+                }
+
+                if (instance != null) {
+                    if (networkInterface != null) instance.networkInterface = networkInterface;
+
+                    // The PTR's name is the service type. The SRV and addresses of the instance
+                    // may have arrived in an earlier datagram, so resolve it from the cache.
+                    touched.add(key);
+                }
+            }
+
+            put(record, now);
+        }
+
+        for (Instance instance : mInstances.values()) {
+            DnsMessage.Record srv = first(instance.name, DnsMessage.TYPE_SRV, now);
+
+            if (!touched.contains(instance.name.toLowerCase(Locale.US))
+                && (srv == null || !touched.contains(srv.target.toLowerCase(Locale.US)))) {
+
+                continue;
+            }
+
+            SsdpMessage resolved = resolve(instance, srv, now);
+
+            if (resolved != null) results.add(resolved);
+        }
+
+        return results;
+    }
+
+    /**
+     * Known answers keep responders from answering queries of new subscriptions, so these get
+     * the instances from the cache instead.
+     *
+     * @param now
+     *            The current time in milliseconds of a monotonic clock.
+     * @return all instances, which can be resolved from the cache, as messages for
+     *         {@link SsdpEngine#result(SsdpMessage)}.
+     */
+    List<SsdpMessage> resolved(long now) {
+        List<SsdpMessage> results = new ArrayList<SsdpMessage>();
+
+        for (Instance instance : mInstances.values()) {
+            SsdpMessage resolved = resolve(instance,
+                first(instance.name, DnsMessage.TYPE_SRV, now), now);
+
+            if (resolved != null) results.add(resolved);
+        }
+
+        return results;
+    }
+
+    /**
+     * Removes expired records and the instances, whose PTR record expired.
+     *
+     * @param now
+     *            The current time in milliseconds of a monotonic clock.
+     */
+    void purge(long now) {
+        Iterator<List<CachedRecord>> sets = mRecords.values().iterator();
+
+        while (sets.hasNext()) {
+            List<CachedRecord> entries = sets.next();
+            Iterator<CachedRecord> i = entries.iterator();
+
+            while (i.hasNext()) {
+                if (i.next().expires <= now) i.remove();
+            }
+
+            if (entries.isEmpty()) sets.remove();
+        }
+
+        Iterator<Instance> instances = mInstances.values().iterator();
+
+        while (instances.hasNext()) {
+            Instance instance = instances.next();
+
+            if (!hasPtr(instance, now)) instances.remove();
+        }
+    }
+
+    /**
+     * Adds or refreshes a record. A TTL of 0 lets it expire after {@link #FLUSH_DELAY}.
+     */
+    private void put(DnsMessage.Record record, long now) {
+        String key = record.setKey();
+        List<CachedRecord> entries = mRecords.get(key);
+
+        if (entries == null) {
+            if (record.ttl == 0) return;
+
+            entries = new ArrayList<CachedRecord>(1);
+            mRecords.put(key, entries);
+        }
+
+        for (int i = 0; i < entries.size(); i++) {
+            if (entries.get(i).record.sameData(record)) {
+                if (record.ttl == 0) {
+                    entries.get(i).expires = Math.min(entries.get(i).expires, now + FLUSH_DELAY);
+                }
+                else {
+                    entries.set(i, new CachedRecord(record, now));
+                }
+
+                return;
+            }
+        }
+
+        if (record.ttl > 0) entries.add(new CachedRecord(record, now));
+    }
+
+    /**
+     * Lets all records of the set of a cache-flush record expire, which were received more than
+     * {@link #FLUSH_DELAY} ago, so the new ones replace them.
+     */
+    private void flush(DnsMessage.Record record, long now) {
+        List<CachedRecord> entries = mRecords.get(record.setKey());
+
+        if (entries == null) return;
+
+        for (CachedRecord entry : entries) {
+            if (now - entry.received > FLUSH_DELAY) {
+                entry.expires = Math.min(entry.expires, now + FLUSH_DELAY);
+            }
+        }
+    }
+
+    /**
+     * @return the most recently received valid record of the set or null. Records replaced by
+     *         a cache-flush record are still valid for a moment, but the new one wins.
+     */
+    private DnsMessage.Record first(String name, int type, long now) {
+        List<CachedRecord> entries = mRecords.get(name.toLowerCase(Locale.US) + '/' + type);
+
+        if (entries == null) return null;
+
+        CachedRecord first = null;
+
+        for (CachedRecord entry : entries) {
+            if (entry.expires > now && (first == null || entry.received >= first.received)) {
+                first = entry;
+            }
+        }
+
+        return first != null ? first.record : null;
+    }
+
+    /**
+     * @return the valid IPv4 and IPv6 addresses of a host, IPv4 first.
+     */
+    private List<InetAddress> addresses(String host, long now) {
+        List<InetAddress> addresses = new ArrayList<InetAddress>();
+
+        for (int type : new int[] { DnsMessage.TYPE_A, DnsMessage.TYPE_AAAA }) {
+            List<CachedRecord> entries = mRecords.get(host.toLowerCase(Locale.US) + '/' + type);
+
+            if (entries == null) continue;
+
+            for (CachedRecord entry : entries) {
+                if (entry.expires > now) addresses.add(entry.record.address);
+            }
+        }
+
+        return addresses;
+    }
+
+    private boolean hasPtr(Instance instance, long now) {
+        List<CachedRecord> entries = mRecords.get(instance.serviceType + '/' + DnsMessage.TYPE_PTR);
+
+        if (entries == null) return false;
+
+        for (CachedRecord entry : entries) {
+            if (entry.expires > now && entry.record.target.equalsIgnoreCase(instance.name)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @return the instance as an answer, if it can be resolved, otherwise null.
+     */
+    private SsdpMessage resolve(Instance instance, DnsMessage.Record srv, long now) {
+        if (srv == null) return null;
+
+        List<InetAddress> addresses = addresses(srv.target, now);
+
+        if (addresses.isEmpty()) return null;
+
+        List<CachedRecord> ptrs = mRecords.get(instance.serviceType + '/' + DnsMessage.TYPE_PTR);
+        long ttl = 0;
+
+        if (ptrs != null) {
+            for (CachedRecord entry : ptrs) {
+                if (entry.record.target.equalsIgnoreCase(instance.name)) ttl = entry.record.ttl;
+            }
+        }
+
+        // A goodbye of the PTR record is reported on its own.
+        if (ttl == 0) return null;
+
+        DnsMessage.Record txt = first(instance.name, DnsMessage.TYPE_TXT, now);
+
+        StringBuilder address = new StringBuilder();
+
+        for (InetAddress a : addresses) {
+            if (address.length() > 0) address.append(", ");
+
+            address.append(a.getHostAddress());
+        }
+
+        String data = srv.target + ':' + srv.port + ' ' + address
+            + (txt != null ? ' ' + txt.txt.toString() : "");
+
+        instance.resolved = true;
+
+        SsdpMessage message = new SsdpMessage();
+        message.type = SsdpParser.TYPE_RESPONSE;
+        message.mdns = true;
+        message.source = addresses.get(0);
+        message.networkInterface = instance.networkInterface;
+        // Not a header: Lets the caches of the subscriptions report changes again.
+        message.bootId = Integer.toHexString(data.hashCode());
+
+        message.add("ST", instance.serviceType);
+        message.add("USN", instance.name);
+        message.add("CACHE-CONTROL", "max-age=" + ttl);
+        message.add("NAME", DnsMessage.labels(instance.name).get(0));
+        message.add("HOSTNAME", srv.target);
+        message.add("PORT", String.valueOf(srv.port));
+        message.add("ADDRESS", address.toString());
+
+        if (txt != null) {
+            for (String entry : txt.txt) {
+                int equals = entry.indexOf('=');
+
+                // Attributes without a value are booleans. (RFC 6763, section 6.4)
+                message.add("TXT." + (equals < 0 ? entry : entry.substring(0, equals)),
+                    equals < 0 ? "" : entry.substring(equals + 1));
+            }
+        }
+
+        return message;
+    }
+
+    /**
+     * @return an "ssdp:byebye" NOTIFY for an instance, which announced, that it's gone.
+     */
+    private static SsdpMessage goodbye(Instance instance) {
+        SsdpMessage message = new SsdpMessage();
+        message.type = SsdpParser.TYPE_NOTIFY;
+        message.mdns = true;
+        message.networkInterface = instance.networkInterface;
+
+        message.add("NT", instance.serviceType);
+        message.add("NTS", "ssdp:byebye");
+        message.add("USN", instance.name);
+
+        return message;
+    }
+}
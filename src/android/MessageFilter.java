@@ -0,0 +1,234 @@
+package com.scott.plugin;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * <p>
+ * Declarative filter for the answers of a {@link Subscription}, evaluated natively right after
+ * parsing, before deduplication and before any JSON is built for the answer.
+ * </p>
+ * <p>
+ * A filter is a list of rules, which all need to match. Each rule is a dictionary:
+ * </p>
+ * <ul>
+ * <li><code>{"header": "SERVER", "equals": "..."}</code>: The header (name case-insensitive)
+ * has exactly this value.</li>
+ * <li><code>{"header": "USN", "prefix": "uuid:..."}</code>: The header value starts with
+ * this.</li>
+ * <li><code>{"header": "LOCATION", "regex": "..."}</code>: The regular expression is found in
+ * the header value.</li>
+ * <li><code>{"source": "192.168.1.0/24"}</code>: The sender's address is in this network. A
+ * plain address without prefix length matches just that address.</li>
+ * <li><code>{"type": "NOTIFY"}</code>: The message is a "NOTIFY" or a "RESPONSE" to an
+ * M-SEARCH.</li>
+ * </ul>
+ * <p>
+ * Header rules can have <code>"ignoreCase": true</code> for equals and prefix. A missing header
+ * never matches. Every rule can be inverted with <code>"not": true</code>.
+ * </p>
+ */
+class MessageFilter {
+
+    private final Rule[] mRules;
+
+    private MessageFilter(Rule[] rules) {
+        mRules = rules;
+    }
+
+    /**
+     * @param rules
+     *            A list of rules as described in the class documentation. May be null.
+     * @return the filter or null, if there are no rules.
+     * @throws JSONException if a rule is malformed.
+     */
+    static MessageFilter parse(JSONArray rules) throws JSONException {
+        if (rules == null || rules.length() < 1) return null;
+
+        List<Rule> parsed = new ArrayList<Rule>();
+
+        for (int i = 0; i < rules.length(); i++) {
+            JSONObject json = rules.getJSONObject(i);
+            Rule rule;
+
+            if (json.has("header")) {
+                rule = new HeaderRule(json);
+            }
+            else if (json.has("source")) {
+                rule = new SourceRule(json.getString("source"));
+            }
+            else if (json.has("type")) {
+                rule = new TypeRule(json.getString("type"));
+            }
+            else {
+                throw new JSONException("Unknown filter rule: " + json);
+            }
+
+            rule.not = json.optBoolean("not", false);
+
+            parsed.add(rule);
+        }
+
+        return new MessageFilter(parsed.toArray(new Rule[parsed.size()]));
+    }
+
+    /**
+     * @return the names of all headers the rules look at. The parser needs to keep them.
+     */
+    List<String> headers() {
+        List<String> headers = new ArrayList<String>();
+
+        for (Rule rule : mRules) {
+            if (rule instanceof HeaderRule) headers.add(((HeaderRule) rule).mHeader);
+        }
+
+        return headers;
+    }
+
+    /**
+     * @param message
+     *            A parsed answer.
+     * @return true, if all rules match.
+     */
+    boolean matches(SsdpMessage message) {
+        for (Rule rule : mRules) {
+            if (rule.matches(message) == rule.not) return false;
+        }
+
+        return true;
+    }
+
+    private abstract static class Rule {
+
+        boolean not;
+
+        abstract boolean matches(SsdpMessage message);
+    }
+
+    private static class HeaderRule extends Rule {
+
+        private final String mHeader;
+        private final String mEquals;
+        private final String mPrefix;
+        private final Pattern mRegex;
+        private final boolean mIgnoreCase;
+
+        HeaderRule(JSONObject json) throws JSONException {
+            mHeader = json.getString("header");
+            mEquals = json.has("equals") ? json.getString("equals") : null;
+            mPrefix = json.has("prefix") ? json.getString("prefix") : null;
+            mIgnoreCase = json.optBoolean("ignoreCase", false);
+
+            if (json.has("regex")) {
+                try {
+                    mRegex = Pattern.compile(json.getString("regex"));
+                } catch (PatternSyntaxException e) {
+                    throw new JSONException("Invalid regex in filter rule: " + e.getMessage());
+                }
+            }
+            else {
+                mRegex = null;
+            }
+
+            if (mEquals == null && mPrefix == null && mRegex == null) {
+                throw new JSONException("Filter rule needs equals, prefix or regex: " + json);
+            }
+        }
+
+        @Override
+        boolean matches(SsdpMessage message) {
+            String value = message.header(mHeader);
+
+            if (value == null) return false;
+
+            if (mEquals != null
+                && !(mIgnoreCase ? value.equalsIgnoreCase(mEquals) : value.equals(mEquals))) {
+
+                return false;
+            }
+
+            if (mPrefix != null
+                && !value.regionMatches(mIgnoreCase, 0, mPrefix, 0, mPrefix.length())) {
+
+                return false;
+            }
+
+            return mRegex == null || mRegex.matcher(value).find();
+        }
+    }
+
+    private static class SourceRule extends Rule {
+
+        private final byte[] mNetwork;
+        private final int mPrefixLength;
+
+        SourceRule(String cidr) throws JSONException {
+            int slash = cidr.indexOf('/');
+            String address = slash < 0 ? cidr.trim() : cidr.substring(0, slash).trim();
+
+            // Only accept literals, InetAddress would happily do a DNS lookup otherwise.
+            if (!address.matches("\\d{1,3}(\\.\\d{1,3}){3}") && !address.contains(":")) {
+                throw new JSONException("Invalid address in filter rule: " + cidr);
+            }
+
+            try {
+                mNetwork = InetAddress.getByName(address).getAddress();
+            } catch (UnknownHostException e) {
+                throw new JSONException("Invalid address in filter rule: " + cidr);
+            }
+
+            try {
+                mPrefixLength = slash < 0 ? mNetwork.length * 8
+                    : Integer.parseInt(cidr.substring(slash + 1).trim());
+            } catch (NumberFormatException e) {
+                throw new JSONException("Invalid prefix length in filter rule: " + cidr);
+            }
+
+            if (mPrefixLength < 0 || mPrefixLength > mNetwork.length * 8) {
+                throw new JSONException("Invalid prefix length in filter rule: " + cidr);
+            }
+        }
+
+        @Override
+        boolean matches(SsdpMessage message) {
+            if (message.source == null) return false;
+
+            byte[] address = message.source.getAddress();
+
+            if (address.length != mNetwork.length) return false;
+
+            int bits = mPrefixLength;
+
+            for (int i = 0; bits > 0; i++, bits -= 8) {
+                int mask = bits >= 8 ? 0xff : (0xff << (8 - bits)) & 0xff;
+
+                if ((address[i] & mask) != (mNetwork[i] & mask)) return false;
+            }
+
+            return true;
+        }
+    }
+
+    private static class TypeRule extends Rule {
+
+        private final String mType;
+
+        TypeRule(String type) {
+            mType = type.toUpperCase(Locale.US);
+        }
+
+        @Override
+        boolean matches(SsdpMessage message) {
+            return mType.equals(message.type);
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.scott.plugin;
+
+import java.util.Random;
+
+/**
+ * <p>
+ * Decides, when to send the next M-SEARCH request of a {@link Subscription}.
+ * </p>
+ * <p>
+ * In fixed mode, requests are sent every interval. In adaptive mode, a few fast requests are
+ * sent first, to make up for lost UDP packets. After that, the interval doubles with every
+ * request up to a ceiling. Interesting changes on the network, like a new device announcing
+ * itself, reset the interval.
+ * </p>
+ * <p>
+ * All delays are shortened by a random amount of up to {@link #JITTER} by default, so multiple
+ * devices running this plugin don't end up sending in lock-step.
+ * </p>
+ */
+class SearchScheduler {
+
+    static final int INITIAL_SEARCHES = 3;
+    static final int INITIAL_INTERVAL = 1000;
+    static final double JITTER = 0.2;
+
+    /**
+     * The shortest interval in milliseconds. Shorter ones would flood the network.
+     */
+    static final int MIN_INTERVAL = 1000;
+
+    private final int mInterval;
+    private final int mMaxInterval;
+    private final int mInitialSearches;
+    private final double mJitter;
+    private final Random mRandom = new Random();
+
+    private int mSearches;
+    private long mCurrentInterval;
+    private long mNext;
+
+    /**
+     * @param interval
+     *            The base interval between two requests in milliseconds. At least
+     *            {@link #MIN_INTERVAL}.
+     * @param maxInterval
+     *            The ceiling for the interval in milliseconds. If this is not greater than
+     *            interval, requests will be sent at a fixed rate.
+     */
+    SearchScheduler(int interval, int maxInterval) {
+        this(interval, maxInterval, INITIAL_SEARCHES, JITTER);
+    }
+
+    /**
+     * @param interval
+     *            The base interval between two requests in milliseconds. At least
+     *            {@link #MIN_INTERVAL}.
+     * @param maxInterval
+     *            The ceiling for the interval in milliseconds. If this is not greater than
+     *            interval, requests will be sent at a fixed rate.
+     * @param initialSearches
+     *            The number of fast requests in adaptive mode, before the interval grows.
+     * @param jitter
+     *            The fraction, by which delays are shortened at most. 0 for exact delays.
+     */
+    SearchScheduler(int interval, int maxInterval, int initialSearches, double jitter) {
+        interval = Math.max(interval, MIN_INTERVAL);
+
+        mInterval = interval;
+        mMaxInterval = Math.max(interval, maxInterval);
+        mCurrentInterval = interval;
+        mInitialSearches = initialSearches;
+        mJitter = jitter;
+    }
+
+    /**
+     * @return true, if the interval grows with every request.
+     */
+    boolean isAdaptive() {
+        return mMaxInterval > mInterval;
+    }
+
+    /**
+     * @return the time in milliseconds of a monotonic clock, when the next request is due.
+     */
+    long next() {
+        return mNext;
+    }
+
+    /**
+     * Schedules the next request. Call this, after a request was sent.
+     *
+     * @param now
+     *            The current time in milliseconds of a monotonic clock.
+     */
+    void sent(long now) {
+        long delay;
+
+        if (isAdaptive() && mSearches < mInitialSearches) {
+            mSearches++;
+            delay = Math.min(INITIAL_INTERVAL, mInterval);
+        }
+        else {
+            delay = mCurrentInterval;
+
+            if (isAdaptive()) mCurrentInterval = Math.min(mCurrentInterval * 2, mMaxInterval);
+        }
+
+        mNext = now + jitter(delay);
+    }
+
+    /**
+     * Resets the interval to its base value and pulls in the next request accordingly, if the
+     * scheduler is adaptive.
+     *
+     * @param now
+     *            The current time in milliseconds of a monotonic clock.
+     */
+    void reset(long now) {
+        if (!isAdaptive() || mCurrentInterval == mInterval) return;
+
+        mCurrentInterval = mInterval;
+
+        mNext = Math.min(mNext, now + jitter(mInterval));
+    }
+
+    /**
+     * @param delay
+     *            A delay in milliseconds.
+     * @return the delay shortened by a random amount of up to the jitter.
+     */
+    private long jitter(long delay) {
+        return delay - (long) (delay * mJitter * mRandom.nextDouble());
+    }
+}
@@ -2,7 +2,6 @@ package com.scott.plugin;
 
 import android.content.Context;
 import android.net.wifi.WifiManager;
-import android.text.TextUtils;
 import android.util.Log;
 
 import org.apache.cordova.CallbackContext;
@@ -12,47 +11,52 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
-import java.net.DatagramPacket;
-import java.net.InetAddress;
-import java.net.MulticastSocket;
-import java.net.SocketTimeoutException;
-import java.util.Iterator;
-import java.util.Locale;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 
 /**
+ * <p>
  * Implementation for SSDP service discovery. Sends a message on the standardized broadcast
  * address/port and listens to the responses. The service type to be looked up
  * is provided by the user.
+ * </p>
+ * <p>
+ * This is just the Cordova adapter. The actual work is done by the {@link SsdpEngine}.
+ * </p>
  */
-public class ServiceDiscovery extends CordovaPlugin implements Runnable {
-
-    private static final String ADDRESS = "239.255.255.250";
-    private static final int PORT = 1900;
-    private static final int RECEIVE_PACKET_SIZE = 9216;
-    private static final String TYPE = "__TYPE__";
-    private static final String TYPE_MSEARCH = "M-SEARCH";
-    private static final String TYPE_NOTIFY = "NOTIFY";
-    private static final String TYPE_RESPONSE = "RESPONSE";
-    private static final String TYPE_UNKNOWN = "UNKNOWN";
-    private static final String REQUEST = String.format(Locale.US, "M-SEARCH * HTTP/1.1\r\n" +
-        "HOST: %s:%d\r\n" +
-        "MAN: \"ssdp:discover\"\r\n" +
-        "ST: %s\r\nMX: 2\r\n" +
-        "\r\n", ADDRESS, PORT, "%s");
-
-    volatile private CallbackContext mCallbackContext;
-    volatile private String mServiceType;
-    volatile private boolean mBroadcastMsearch = true;
-    volatile private boolean mListenForNotifies;
-    volatile private boolean mNormalizeHeaders;
-    volatile private int mTimeout = 4000;
-    volatile private boolean mBackgroundThreadActive;
-    volatile private JSONObject mOldAnswers = new JSONObject();
-    private static InetAddress sGroup;
-    private MulticastSocket mMcs;
-    private WifiManager.MulticastLock mMulticastLock;
+public class ServiceDiscovery extends CordovaPlugin {
+
+    private static final int DEFAULT_BATCH_DELAY = 250;
+
+    /**
+     * Name of the config.xml preference for the log level: VERBOSE, DEBUG, INFO, WARN (default),
+     * ERROR or NONE. VERBOSE logs every answer.
+     */
+    private static final String PREF_LOG_LEVEL = "ServiceDiscoveryLogLevel";
+
+    /**
+     * Name of the config.xml preference for the USER-AGENT header of M-SEARCH requests. Not sent
+     * by default.
+     */
+    private static final String PREF_USER_AGENT = "ServiceDiscoveryUserAgent";
+
+    /**
+     * Name of the file in the app's cache directory, where known devices are kept for a warm
+     * start.
+     */
+    private static final String DEVICE_STORE = "service-discovery-devices.bin";
+
+    /**
+     * How long {@link #onDestroy()} waits for the background thread in milliseconds.
+     */
+    private static final long SHUTDOWN_TIMEOUT = 500;
+
+    private SsdpEngine mEngine;
 
 
     /**
@@ -61,15 +65,45 @@ public class ServiceDiscovery extends CordovaPlugin implements Runnable {
     protected void pluginInitialize() {
         super.pluginInitialize();
 
+        SsdpLog.setSink(new SsdpLog.Sink() {
+            @Override
+            public void println(int level, String tag, String message, Throwable throwable) {
+                if (throwable != null) message += '\n' + Log.getStackTraceString(throwable);
+
+                Log.println(level, tag, message);
+            }
+        });
+        SsdpLog.setLevel(SsdpLog.parseLevel(preferences.getString(PREF_LOG_LEVEL, null),
+            SsdpLog.WARN));
+
+        mEngine = new SsdpEngine();
+        mEngine.setStore(new DeviceStore(new File(cordova.getActivity().getCacheDir(),
+            DEVICE_STORE)));
+
         WifiManager wm = (WifiManager) cordova.getActivity().getApplicationContext()
             .getSystemService(Context.WIFI_SERVICE);
 
-        if (wm != null) mMulticastLock = wm.createMulticastLock("SERVICE_DISCOVERY_LOCK");
+        if (wm != null) {
+            final WifiManager.MulticastLock lock =
+                wm.createMulticastLock("SERVICE_DISCOVERY_LOCK");
+
+            mEngine.setMulticastLock(new SsdpEngine.MulticastLock() {
+                @Override
+                public void acquire() {
+                    lock.acquire();
+                }
+
+                @Override
+                public void release() {
+                    lock.release();
+                }
+            });
+        }
     }
 
     /**
      * <p>
-     * Implements two actions:
+     * Implements four actions:
      * </p>
      * <dl>
      * <dt>
@@ -80,7 +114,8 @@ public class ServiceDiscovery extends CordovaPlugin implements Runnable {
      * Listen for SSDP server discovery answers.
      * </p>
      * <p>
-     * You need to provide a proper SSDP service type as first argument.
+     * You need to provide a proper SSDP service type or an array of them as first argument.
+     * Answers are filtered natively to match one of these service types.
      * </p>
      * <p>
      * This will continuously send out a SSDP "M-SEARCH" discovery request and then listen for
@@ -96,8 +131,51 @@ public class ServiceDiscovery extends CordovaPlugin implements Runnable {
      * explicitly call "stop" to achieve this!
      * </p>
      * <p>
-     * Succeeding calls to this action will overwrite the preceding call. In other words: Only the
-     * last caller will receive callbacks!
+     * Multiple listeners can be active at the same time, each identified by the listener handle
+     * given as 8th argument. They share one socket and one background thread, and every answer
+     * is routed to all listeners, whose service type it matches. A call with the handle of an
+     * active listener replaces that listener.
+     * </p>
+     * <p>
+     * Optionally, answers can be coalesced: If a batch size greater than 1 or a batch delay is
+     * provided, your success callback will receive arrays of answers instead, at most batch size
+     * answers at once and at latest batch delay milliseconds after the first answer of a batch
+     * was received.
+     * </p>
+     * <p>
+     * The MX value of the M-SEARCH requests can be set with the 9th argument. If a maximum search
+     * interval greater than the read timeout is given as 10th argument, searching becomes
+     * adaptive: After a few fast initial requests, the interval doubles with every request up to
+     * that maximum. NOTIFY messages of devices coming or going reset the interval. See
+     * {@link SearchScheduler}.
+     * </p>
+     * <p>
+     * Answers can be filtered natively with a list of rules as 11th argument, before they are
+     * deduplicated and cross the bridge. See {@link MessageFilter}.
+     * </p>
+     * <p>
+     * If a list of header names is given as 12th argument, answers only contain these headers.
+     * Headers no listener asked for are skipped by the parser.
+     * </p>
+     * <p>
+     * If the 13th argument is true, new answers are delivered together with the UPnP device
+     * description behind their LOCATION header. Descriptions are fetched concurrently and cached
+     * natively. See {@link DescriptionFetcher}.
+     * </p>
+     * <p>
+     * If the 14th argument is true, the multicast lock is only held during search windows after
+     * M-SEARCH requests of this listener. See {@link Subscription#needsMulticastLock(long)}.
+     * </p>
+     * <p>
+     * Searches go out on every network interface, which is up and supports multicast, unless a
+     * list of interface names is given as 15th argument. Answers contain the name of the
+     * interface they were received on as "interface". Interfaces coming and going are picked up
+     * while listening.
+     * </p>
+     * <p>
+     * DNS-SD service types, like "_googlecast._tcp", are browsed with mDNS on the same thread.
+     * Their service instances are delivered like SSDP answers, marked with "protocol": "mdns".
+     * See {@link MdnsBrowser}.
      * </p>
      * </dd>
      * <dt>
@@ -108,13 +186,40 @@ public class ServiceDiscovery extends CordovaPlugin implements Runnable {
      * Stops listening for SSDP server discovery answers.
      * </p>
      * <p>
-     * You will immediately stop receiving updates to your listener. The background thread will be
-     * stopped after read timeout. (4 seconds per default).
+     * Stops the listener with the handle given as first argument or all listeners, if none is
+     * given.
+     * </p>
+     * <p>
+     * You will immediately stop receiving updates to your listener. When the last listener is
+     * stopped, the background thread will be woken up and stopped immediately, too.
      * </p>
      * <p>
      * It is safe to call this multiple times and before any call to "listen".
      * </p>
      * </dd>
+     * <dt>
+     * getStats
+     * </dt>
+     * <dd>
+     * <p>
+     * Returns the counters and histograms collected since the plugin was loaded: packets and
+     * bytes received, packets by type, suppressed duplicates, cache size, send errors, socket
+     * timeouts, parse time and the delay from sending M-SEARCH requests to the first and last
+     * response. See {@link SsdpStats}.
+     * </p>
+     * </dd>
+     * <dt>
+     * probe
+     * </dt>
+     * <dd>
+     * <p>
+     * Checks, if known devices are still alive, with unicast M-SEARCH requests, instead of
+     * multicasting to the whole network. Takes a list of device addresses, the service type to
+     * search for, a timeout and normalizeHeaders and returns one result per address: alive, the
+     * round-trip time and the response. Runs on Cordova's thread pool for at most the timeout.
+     * See {@link SsdpProber}.
+     * </p>
+     * </dd>
      * </dl>
      *
      * @param action          The action to execute.
@@ -128,335 +233,276 @@ public class ServiceDiscovery extends CordovaPlugin implements Runnable {
         throws JSONException {
 
         if (action.equals("listen")) {
-            mCallbackContext = callbackContext;
-            mServiceType = args.getString(0);
-            mBroadcastMsearch = args.optBoolean(1, true);
-            mListenForNotifies = args.optBoolean(2, false);
+            // Old JavaScript code doesn't provide a handle. Treat it like one single listener.
+            String id = args.optString(7, "");
 
-            mNormalizeHeaders = args.optBoolean(3, false);
+            Subscription subscription = new Subscription(id,
+                new CallbackListener(callbackContext), serviceTypes(args));
+            subscription.broadcastMsearch = args.optBoolean(1, true);
+            subscription.listenForNotifies = args.optBoolean(2, false);
 
-            // Remove old answers, so we can give back everything again to the new listener.
-            mOldAnswers = new JSONObject();
+            subscription.normalizeHeaders = args.optBoolean(3, false);
 
-            // set default read timeout to 4 seconds.
-            mTimeout = args.optInt(4, 4000);
+            // set default read timeout to 4 seconds. 0 or less would search in a tight loop.
+            subscription.timeout = Math.max(SearchScheduler.MIN_INTERVAL, args.optInt(4, 4000));
 
-            Log.i("ServiceDiscovery", String.format("#listen {mServiceType=\"%s\", "
-                    + "mBroadcastMsearch=%b, mListenForNotifies=%b, "
-                    + "mNormalizeHeaders=%b, mTimeout=%d, mBackgroundThreadActive=%b}",
-                mServiceType, mBroadcastMsearch, mListenForNotifies, mNormalizeHeaders, mTimeout,
-                mBackgroundThreadActive));
+            int batchSize = args.optInt(5, 0);
+            int batchDelay = args.optInt(6, 0);
 
-            if (!mBackgroundThreadActive) cordova.getThreadPool().execute(this);
+            if (batchSize > 1 || batchDelay > 0) {
+                subscription.batchSize = batchSize > 0 ? batchSize : Integer.MAX_VALUE;
+                subscription.batchDelay = batchDelay > 0 ? batchDelay : DEFAULT_BATCH_DELAY;
+            }
 
-            return true;
-        }
+            // UDA allows 1 to 5 seconds.
+            subscription.mx = Math.max(1, Math.min(5, args.optInt(8, 2)));
 
-        if (action.equals("stop")) {
-            mCallbackContext = null;
+            // Without a greater maximum, M-SEARCH requests are sent at a fixed rate.
+            int maxInterval = args.optInt(9, subscription.timeout);
+            subscription.scheduler = new SearchScheduler(subscription.timeout, maxInterval);
 
-            Log.i("ServiceDiscovery", String.format("#stop {backgroundThreadActive=%b}",
-                mBackgroundThreadActive));
+            subscription.filter = MessageFilter.parse(args.optJSONArray(10));
 
-            callbackContext.success();
+            subscription.headers = headers(args.optJSONArray(11));
 
-            return true;
-        }
+            subscription.fetchDescription = args.optBoolean(12, false);
 
-        return false;
-    }
+            subscription.powerSave = args.optBoolean(13, false);
 
-    /**
-     * <p>
-     * Called by Cordova after page reload.
-     * </p>
-     * <p>
-     * Tells an eventually running background thread to give up working by removing the
-     * {@link #mCallbackContext}.
-     * </p>
-     */
-    @Override
-    public void onReset() {
-        super.onReset();
+            subscription.interfaces = interfaces(args.optJSONArray(14));
 
-        mCallbackContext = null;
-    }
+            String userAgent = preferences.getString(PREF_USER_AGENT, "").trim();
+            subscription.userAgent = userAgent.length() > 0 ? userAgent : null;
 
-    /**
-     * Thread for {@link #execute(String, JSONArray, CallbackContext)} action=listen.
-     */
-    @Override
-    public void run() {
-        mBackgroundThreadActive = true;
-
-        while (mCallbackContext != null) {
-            try {
-                if (mBroadcastMsearch) broadcast();
-
-                receive();
-            } catch (IOException e) {
-                e.printStackTrace();
-
-                PluginResult result = new PluginResult(PluginResult.Status.ERROR, e.getMessage());
-                result.setKeepCallback(true);
-                mCallbackContext.sendPluginResult(result);
-
-                // Keep loop frequency below 1/s.
-                try {
-                    Thread.sleep(1000);
-                } catch (InterruptedException e1) {
-                    break;
-                }
+            if (SsdpLog.isLoggable(SsdpLog.INFO)) {
+                SsdpLog.log(SsdpLog.INFO, SsdpLog.TAG, "#listen {id=\"%s\", serviceTypes=%s, "
+                        + "broadcastMsearch=%b, listenForNotifies=%b, "
+                        + "normalizeHeaders=%b, timeout=%d, batchSize=%d, batchDelay=%d, mx=%d, "
+                        + "maxInterval=%d, filter=%b, headers=%s, fetchDescription=%b, "
+                        + "powerSave=%b, interfaces=%s, backgroundThreadActive=%b}",
+                    id, subscription.serviceTypes, subscription.broadcastMsearch,
+                    subscription.listenForNotifies, subscription.normalizeHeaders,
+                    subscription.timeout, subscription.batchSize, subscription.batchDelay,
+                    subscription.mx, maxInterval, subscription.filter != null,
+                    subscription.headers != null
+                        ? Arrays.toString(subscription.headers.names()) : "all",
+                    subscription.fetchDescription, subscription.powerSave,
+                    subscription.interfaces != null ? subscription.interfaces : "all",
+                    mEngine.isActive());
             }
+
+            mEngine.subscribe(subscription);
+
+            return true;
         }
 
-        close();
+        if (action.equals("stop")) {
+            if (args.isNull(0)) {
+                mEngine.unsubscribeAll();
+            }
+            else {
+                mEngine.unsubscribe(args.getString(0));
+            }
 
-        mBackgroundThreadActive = false;
-    }
+            if (SsdpLog.isLoggable(SsdpLog.INFO)) {
+                SsdpLog.log(SsdpLog.INFO, SsdpLog.TAG, "#stop {listeners=%d, "
+                        + "backgroundThreadActive=%b, backgroundThreadState=%s}",
+                    mEngine.subscriptionCount(), mEngine.isActive(), mEngine.threadState());
+            }
 
-    /**
-     * Sends the answer of a server to a M-SEARCH request to the callback of the last caller of
-     * {@link #execute(String, JSONArray, CallbackContext)} action=listen, if it doesn't contain a
-     * USN or if the USN was not seen before.
-     *
-     * @param answer A dictionary containing the answer of an SSDP server.
-     */
-    private void result(JSONObject answer) {
-        if (mCallbackContext != null && answer != null) {
-            String type = null;
-            String nt = null;
-            String usn = null;
+            callbackContext.success();
 
-            Iterator<String> i = answer.keys();
+            return true;
+        }
 
-            while (i.hasNext()) {
-                String key = i.next();
+        if (action.equals("getStats")) {
+            callbackContext.success(mEngine.getStats());
 
-                if (key.compareToIgnoreCase(TYPE) == 0) {
-                    type = answer.optString(key, null);
-                }
-                else if (key.compareToIgnoreCase("NT") == 0) {
-                    nt = answer.optString(key, null);
-                }
-                else if (key.compareToIgnoreCase("USN") == 0) {
-                    usn = answer.optString(key, null);
-                    break;
-                }
-            }
+            return true;
+        }
 
-            if (TYPE_UNKNOWN.equals(type)) {
-                // We don't understand this. Probably doesn't make sense.
-                return;
-            }
+        if (action.equals("probe")) {
+            JSONArray list = args.getJSONArray(0);
+            List<String> targets = new ArrayList<String>();
 
-            if (TYPE_MSEARCH.equals(type)) {
-                // We're not interested in M-SEARCH requests. (Probably our own, anyway.)
-                return;
+            for (int i = 0; i < list.length(); i++) {
+                targets.add(list.getString(i));
             }
 
-            if (TYPE_NOTIFY.equals(type) && (
-                !mListenForNotifies ||
-                (!"ssdp:all".equals(mServiceType) && !mServiceType.equals(nt))
-            )) {
-                // That's strange stuff from devices we don't want - ignore.
-                return;
-            }
+            String serviceType = args.optString(1, "").trim();
+            final int timeout = args.optInt(2, SsdpProber.DEFAULT_TIMEOUT);
+            final boolean normalizeHeaders = args.optBoolean(3, false);
+            String userAgent = preferences.getString(PREF_USER_AGENT, "").trim();
 
-            if (usn == null || !mOldAnswers.has(usn))
-            {
-                answer.remove(TYPE);
+            final SsdpProber prober = new SsdpProber(targets,
+                serviceType.length() > 0 ? serviceType : null,
+                userAgent.length() > 0 ? userAgent : null, mEngine.stats());
 
-                PluginResult result = new PluginResult(PluginResult.Status.OK, answer);
-                result.setKeepCallback(true);
-                mCallbackContext.sendPluginResult(result);
+            if (SsdpLog.isLoggable(SsdpLog.INFO)) {
+                SsdpLog.log(SsdpLog.INFO, SsdpLog.TAG, "#probe {targets=%d, timeout=%d}",
+                    targets.size(), timeout);
+            }
 
-                Log.i("ANSWER", answer.toString());
+            cordova.getThreadPool().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        JSONArray results = new JSONArray();
 
-                if (usn != null) try {
-                    mOldAnswers.put(usn, answer);
-                } catch (JSONException e) {
-                    // This should not happen.
-                    e.printStackTrace();
+                        for (SsdpProber.Result result : prober.probe(timeout)) {
+                            results.put(result.toJSON(normalizeHeaders));
+                        }
+
+                        callbackContext.success(results);
+                    } catch (IOException e) {
+                        callbackContext.error(e.getMessage());
+                    }
                 }
-            }
+            });
+
+            return true;
         }
+
+        return false;
     }
 
     /**
-     * Checks, if a {@link MulticastSocket} is already opened, and if not, does open and configure
-     * it.
-     *
-     * @throws IOException if an I/O exception occurs while opening the {@link MulticastSocket}.
+     * @param args
+     *            The exec() arguments of action=listen.
+     * @return the service types from the first argument, which can be a string or an array of
+     *         strings.
+     * @throws JSONException if no service type is provided.
      */
-    private void open() throws IOException {
-        if (sGroup == null) {
-            sGroup = InetAddress.getByName(ADDRESS);
+    private static Set<String> serviceTypes(JSONArray args) throws JSONException {
+        Set<String> serviceTypes = new LinkedHashSet<String>();
+
+        JSONArray list = args.optJSONArray(0);
+
+        if (list == null) {
+            serviceTypes.add(args.getString(0));
         }
+        else {
+            for (int i = 0; i < list.length(); i++) {
+                String serviceType = list.optString(i, "");
 
-        if (mMcs == null) {
-            mMcs = new MulticastSocket(PORT);
-            mMcs.joinGroup(sGroup);
-            mMcs.setTimeToLive(4);
-            mMcs.setBroadcast(true);
+                if (serviceType.length() > 0) serviceTypes.add(serviceType);
+            }
         }
 
-        mMcs.setSoTimeout(mTimeout);
+        if (serviceTypes.isEmpty()) throw new JSONException("serviceType must not be empty!");
+
+        return serviceTypes;
     }
 
     /**
-     * Broadcasts the SSDP M-SEARCH request. Transparently tries to open and configure a
-     * {@link MulticastSocket}, if not done, yet.
-     *
-     * @throws IOException if an I/O exception occurs while opening the {@link MulticastSocket}.
+     * @param list
+     *            The header names argument of action=listen. May be null.
+     * @return the headers to deliver or null, if no list or an empty one was given.
      */
-    private void broadcast() throws IOException {
-        open();
+    private static HeaderSet headers(JSONArray list) {
+        if (list == null) return null;
+
+        List<String> headers = new ArrayList<String>();
+
+        for (int i = 0; i < list.length(); i++) {
+            String header = list.optString(i, "");
 
-        byte[] request = String.format(Locale.US, REQUEST, mServiceType).getBytes();
-        mMcs.send(new DatagramPacket(request, request.length, sGroup, PORT));
+            if (header.length() > 0) headers.add(header);
+        }
+
+        return headers.isEmpty() ? null : new HeaderSet(headers);
     }
 
     /**
-     * <p>
-     * Will listen for answers from SSDP servers. Transparently tries to open and
-     * configure a {@link MulticastSocket}, if not done, yet.
-     * </p>
-     * <p>
-     * When an answer was received, sends it immediately to the calling JavaScript.
-     * </p>
-     *
-     * @throws IOException if an I/O exception occurs while opening the {@link MulticastSocket}.
+     * @param list
+     *            The network interface names argument of action=listen. May be null.
+     * @return the names of the interfaces to use or null, if no list or an empty one was given.
      */
-    private void receive() throws IOException {
-        open();
+    private static Set<String> interfaces(JSONArray list) {
+        if (list == null) return null;
 
-        if (mMulticastLock != null) mMulticastLock.acquire();
+        Set<String> interfaces = new LinkedHashSet<String>();
 
-        while (mCallbackContext != null) {
-            try {
-                byte[] data = new byte[RECEIVE_PACKET_SIZE];
-                mMcs.receive(new DatagramPacket(data, data.length));
+        for (int i = 0; i < list.length(); i++) {
+            String name = list.optString(i, "").trim();
 
-                result(convert(data, mNormalizeHeaders));
-            } catch (SocketTimeoutException e) {
-                break;
-            }
+            if (name.length() > 0) interfaces.add(name);
         }
 
-        if (mMulticastLock != null) mMulticastLock.release();
+        return interfaces.isEmpty() ? null : interfaces;
     }
 
     /**
-     *  Checks, if the {@link MulticastSocket} is already closed, and if not, does close it.
+     * <p>
+     * Called by Cordova after page reload.
+     * </p>
+     * <p>
+     * Tells an eventually running background thread to give up working by removing all
+     * subscriptions.
+     * </p>
      */
-    private void close() {
-        if (mMcs != null) {
-            if (sGroup != null) {
-                try {
-                    mMcs.leaveGroup(sGroup);
-                } catch (IOException e) {
-                    // Ignore, closing anyway.
-                }
-            }
+    @Override
+    public void onReset() {
+        super.onReset();
 
-            mMcs.close();
-            mMcs = null;
-        }
+        mEngine.unsubscribeAll();
     }
 
     /**
      * <p>
-     * Converts the contents of a received byte buffer into a string and then breaks down the
-     * contained HTTP headers.
-     * </p>
-     * <p>
-     * See <a href="https://de.wikipedia.org/wiki/Simple_Service_Discovery_Protocol"
-     * >Wikipedia: Simple Service Discovery Protocol</a> for an example of an SSDP response.
+     * Called by Cordova, when the app is shut down.
      * </p>
      * <p>
-     * Will capitalize headers, if requested to do so.
+     * Stops the background thread and waits shortly for it, so the known devices are saved.
      * </p>
-     * @param data
-     *            A byte buffer.
-     * @param normalizeHeaders
-     *            If headers should be capitalized.
-     * @return A {@link JSONObject} containing all headers.
      */
-    private static JSONObject convert(byte[] data, boolean normalizeHeaders) {
-        JSONObject headers = new JSONObject();
-
-        try {
-            String answer = new String(data, "UTF-8").trim();
-
-            for (String line : answer.split("\r")) {
-                if (!line.contains(":")) {
-                    if (line.trim().length() < 1) continue;
-
-                    String header = line.toUpperCase(Locale.US);
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
 
-                    try {
-                        if (header.contains("M-SEARCH")) {
-                            headers.put(TYPE, TYPE_MSEARCH);
-                        } else if (header.contains("NOTIFY")) {
-                            headers.put(TYPE, TYPE_NOTIFY);
-                        } else if (header.contains("OK")) {
-                            headers.put(TYPE, TYPE_RESPONSE);
-                        } else {
-                            headers.put(TYPE, TYPE_UNKNOWN);
-                        }
-                    } catch (JSONException e) {
-                        // This should not happen.
-                        e.printStackTrace();
-                    }
-                }
-                else {
-                    String parts[] = line.split(":");
-                    StringBuilder value = new StringBuilder();
+        mEngine.shutdown(SHUTDOWN_TIMEOUT);
+    }
 
-                    for (int i = 1; i < parts.length; i++) {
-                        value.append(parts[i].trim());
+    /**
+     * Forwards the answers of a {@link Subscription} to the JavaScript callback of
+     * action=listen.
+     */
+    private static class CallbackListener implements SsdpEngine.Listener {
 
-                        if (i < parts.length - 1) value.append(":");
-                    }
+        private final CallbackContext mCallbackContext;
 
-                    String key = parts[0].trim();
+        CallbackListener(CallbackContext callbackContext) {
+            mCallbackContext = callbackContext;
+        }
 
-                    if (normalizeHeaders) key = capitalize(key);
+        @Override
+        public void onAnswer(JSONObject answer) {
+            PluginResult result = new PluginResult(PluginResult.Status.OK, answer);
+            result.setKeepCallback(true);
+            mCallbackContext.sendPluginResult(result);
 
-                    try {
-                        headers.put(key, value.toString());
-                    } catch (JSONException e) {
-                        // This should not happen.
-                        e.printStackTrace();
-                    }
-                }
+            // Serializing the answer is expensive, don't do it for nothing.
+            if (SsdpLog.isLoggable(SsdpLog.VERBOSE)) {
+                SsdpLog.log(SsdpLog.VERBOSE, "ANSWER", answer.toString());
             }
-
-        } catch (UnsupportedEncodingException e) {
-            // Ignore, Android supports UTF-8 since API 1.
         }
 
-        return headers;
-    }
-
-    /**
-     * Capitalize HTTP header properly.
-     *
-     * @param string
-     *            A HTTP header.
-     * @return a capitalized HTTP header.
-     */
-    private static String capitalize(String string) {
-        String[] parts = string.split("-");
+        @Override
+        public void onAnswers(JSONArray answers) {
+            PluginResult result = new PluginResult(PluginResult.Status.OK, answers);
+            result.setKeepCallback(true);
+            mCallbackContext.sendPluginResult(result);
 
-        for (int i = 0; i < parts.length; i++) {
-            if (parts[i].length() > 0) {
-                parts[i] = parts[i].substring(0, 1).toUpperCase()
-                    + parts[i].substring(1).toLowerCase();
+            if (SsdpLog.isLoggable(SsdpLog.VERBOSE)) {
+                SsdpLog.log(SsdpLog.VERBOSE, "ANSWER", answers.toString());
             }
         }
 
-        return TextUtils.join("-", parts);
+        @Override
+        public void onError(String message) {
+            PluginResult result = new PluginResult(PluginResult.Status.ERROR, message);
+            result.setKeepCallback(true);
+            mCallbackContext.sendPluginResult(result);
+        }
     }
 }
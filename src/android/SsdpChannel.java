@@ -0,0 +1,365 @@
+package com.scott.plugin;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.InterfaceAddress;
+import java.net.NetworkInterface;
+import java.net.ProtocolFamily;
+import java.net.SocketException;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.MembershipKey;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * <p>
+ * SSDP on one address family of one network interface.
+ * </p>
+ * <p>
+ * NOTIFY messages are received by one channel per address family, which is bound to the SSDP
+ * port and shared by all interfaces, since multiple sockets bound to the same port would all
+ * receive every multicast datagram. This object joins the family's multicast groups on its
+ * interface with that shared channel.
+ * </p>
+ * <p>
+ * M-SEARCH requests are sent from an own channel, bound to an ephemeral port on the address of
+ * the interface, like most control points do. So requests leave through this interface, unicast
+ * responses are known to arrive through it, and they reach us, even if another socket on this
+ * host is bound to the SSDP port, too. The channel is registered with the {@link Selector} of the
+ * {@link SsdpEngine} with this object as attachment.
+ * </p>
+ * <p>
+ * While any subscription browses DNS-SD service types, this object also joins the mDNS group of
+ * its family on its interface with the shared mDNS channel, which is bound to the mDNS port.
+ * mDNS queries are sent from that channel, since responders answer queries from other ports
+ * with short-lived unicast responses only. (RFC 6762, section 6.7)
+ * </p>
+ */
+class SsdpChannel implements Closeable {
+
+    static final int MULTICAST_TTL = 4;
+
+    final NetworkInterface networkInterface;
+
+    /**
+     * The name of the network interface, e.g. "wlan0".
+     */
+    final String name;
+
+    final boolean ipv6;
+
+    /**
+     * The address of the interface, the search channel is bound to.
+     */
+    final InetAddress address;
+
+    /**
+     * Indexes into {@link SsdpEngine#GROUPS} of the groups of this family.
+     */
+    final int[] groups;
+
+    /**
+     * The service types, requests were sent for in the current search cycle. Only touched by the
+     * background thread.
+     */
+    final Set<String> sent = new HashSet<String>();
+
+    private final DatagramChannel mSearchChannel;
+    private final List<MembershipKey> mMemberships = new ArrayList<MembershipKey>();
+
+    /**
+     * The membership in the mDNS group or null, if not joined.
+     */
+    private MembershipKey mMdnsMembership;
+
+    private SsdpChannel(NetworkInterface ni, boolean ipv6, InetAddress address)
+        throws IOException {
+
+        networkInterface = ni;
+        name = ni.getName();
+        this.ipv6 = ipv6;
+        this.address = address;
+        groups = ipv6 ? new int[] { 1, 2 } : new int[] { 0 };
+
+        mSearchChannel = DatagramChannel.open(family(ipv6));
+    }
+
+    /**
+     * @param ipv6
+     *            True for IPv6, false for IPv4.
+     * @return the protocol family.
+     */
+    static ProtocolFamily family(boolean ipv6) {
+        return ipv6 ? StandardProtocolFamily.INET6 : StandardProtocolFamily.INET;
+    }
+
+    /**
+     * @param ni
+     *            A network interface.
+     * @param ipv6
+     *            True for IPv6, false for IPv4.
+     * @return the first address of that family of the interface or null. For IPv6, link-local
+     *         addresses are preferred, since SSDP mostly uses the link-local group.
+     */
+    static InetAddress address(NetworkInterface ni, boolean ipv6) {
+        InetAddress found = null;
+
+        for (InterfaceAddress ia : ni.getInterfaceAddresses()) {
+            InetAddress address = ia.getAddress();
+
+            if (address == null || (address instanceof Inet6Address) != ipv6) continue;
+
+            if (!ipv6 || address.isLinkLocalAddress()) return address;
+
+            if (found == null) found = address;
+        }
+
+        return found;
+    }
+
+    /**
+     * @param ni
+     *            The network interface to use.
+     * @param ipv6
+     *            True for IPv6, false for IPv4.
+     * @param address
+     *            The address of the interface to bind the search channel to.
+     * @param receiveChannel
+     *            The shared channel of the family, which is bound to the SSDP port.
+     * @param selector
+     *            The search channel is registered with it for reading.
+     * @return the opened and configured channel.
+     * @throws IOException if opening, binding or joining fails.
+     */
+    static SsdpChannel open(NetworkInterface ni, boolean ipv6, InetAddress address,
+                            DatagramChannel receiveChannel, Selector selector)
+        throws IOException {
+
+        SsdpChannel channel = new SsdpChannel(ni, ipv6, address);
+
+        try {
+            for (int group : channel.groups) {
+                channel.mMemberships.add(receiveChannel.join(
+                    SsdpEngine.group(group).getAddress(), ni));
+            }
+
+            DatagramChannel search = channel.mSearchChannel;
+            search.setOption(StandardSocketOptions.IP_MULTICAST_TTL, MULTICAST_TTL);
+            search.setOption(StandardSocketOptions.IP_MULTICAST_IF, ni);
+            search.bind(new InetSocketAddress(address, 0));
+            search.configureBlocking(false);
+            search.register(selector, SelectionKey.OP_READ, channel);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        return channel;
+    }
+
+    /**
+     * @param ni
+     *            A network interface as currently enumerated.
+     * @param address
+     *            The current address of that interface of this channel's family.
+     * @return true, if this channel still matches the interface.
+     */
+    boolean matches(NetworkInterface ni, InetAddress address) {
+        return name.equals(ni.getName()) && this.address.equals(address);
+    }
+
+    /**
+     * @param source
+     *            The sender of a datagram received on the shared channel.
+     * @return true, if the sender is on the link of this interface: In one of its IPv4 subnets
+     *         or, for IPv6, with the scope of this interface or in one of its prefixes.
+     */
+    boolean isLocal(InetAddress source) {
+        if (ipv6 != (source instanceof Inet6Address)) return false;
+
+        if (ipv6) {
+            NetworkInterface scope = ((Inet6Address) source).getScopedInterface();
+
+            if (scope != null) return scope.getName().equals(name);
+
+            if (((Inet6Address) source).getScopeId() > 0) {
+                return ((Inet6Address) source).getScopeId() == scopeId();
+            }
+        }
+
+        byte[] bytes = source.getAddress();
+
+        for (InterfaceAddress ia : networkInterface.getInterfaceAddresses()) {
+            InetAddress address = ia.getAddress();
+
+            if (address == null || address.getAddress().length != bytes.length) continue;
+
+            if (samePrefix(bytes, address.getAddress(), ia.getNetworkPrefixLength())) return true;
+        }
+
+        return false;
+    }
+
+    private int scopeId() {
+        return address instanceof Inet6Address ? ((Inet6Address) address).getScopeId() : 0;
+    }
+
+    private static boolean samePrefix(byte[] a, byte[] b, int prefixLength) {
+        int bits = prefixLength;
+
+        for (int i = 0; bits > 0 && i < a.length; i++, bits -= 8) {
+            int mask = bits >= 8 ? 0xff : (0xff << (8 - bits)) & 0xff;
+
+            if ((a[i] & mask) != (b[i] & mask)) return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Sends a datagram from the search channel. Doesn't block.
+     *
+     * @param datagram
+     *            The datagram. Its position is advanced.
+     * @param target
+     *            Where to send it.
+     * @return false, if the datagram was dropped, because the send buffer is full.
+     * @throws IOException if sending fails.
+     */
+    boolean send(ByteBuffer datagram, InetSocketAddress target) throws IOException {
+        return mSearchChannel.send(datagram, target) > 0;
+    }
+
+    /**
+     * @return true, if this object joined the mDNS group.
+     */
+    boolean joinedMdns() {
+        return mMdnsMembership != null;
+    }
+
+    /**
+     * Joins the mDNS group of this family on this interface.
+     *
+     * @param mdnsChannel
+     *            The shared channel of the family, which is bound to the mDNS port.
+     * @throws IOException if joining fails.
+     */
+    void joinMdns(DatagramChannel mdnsChannel) throws IOException {
+        if (mMdnsMembership == null) {
+            mMdnsMembership = mdnsChannel.join(MdnsBrowser.group(ipv6).getAddress(),
+                networkInterface);
+        }
+    }
+
+    /**
+     * Leaves the mDNS group, if joined.
+     */
+    void leaveMdns() {
+        if (mMdnsMembership != null) {
+            mMdnsMembership.drop();
+            mMdnsMembership = null;
+        }
+    }
+
+    /**
+     * Sends an mDNS query through this interface from the shared mDNS channel, it joined the
+     * group with. Doesn't block.
+     *
+     * @param datagram
+     *            The query. Its position is advanced.
+     * @return false, if the datagram was dropped, because the send buffer is full.
+     * @throws IOException if sending fails or the group isn't joined.
+     */
+    boolean sendMdns(ByteBuffer datagram) throws IOException {
+        if (mMdnsMembership == null) throw new IOException("mDNS group not joined on " + this);
+
+        DatagramChannel channel = (DatagramChannel) mMdnsMembership.channel();
+
+        // The channel is shared by all interfaces, so it needs to be pointed at this one.
+        channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+
+        return channel.send(datagram, MdnsBrowser.group(ipv6)) > 0;
+    }
+
+    /**
+     * Leaves the multicast groups and closes the search channel. Errors are ignored.
+     */
+    @Override
+    public void close() {
+        for (MembershipKey membership : mMemberships) {
+            membership.drop();
+        }
+
+        mMemberships.clear();
+
+        leaveMdns();
+
+        SsdpEngine.close(mSearchChannel);
+    }
+
+    /**
+     * @param ipv6
+     *            True for IPv6, false for IPv4.
+     * @param port
+     *            {@link SsdpEngine#PORT} to receive NOTIFY messages or {@link MdnsBrowser#PORT}
+     *            to receive mDNS responses.
+     * @return a new channel of that family, bound to the port, to receive on all interfaces.
+     *         The address is reused, since other apps or the system may listen, too. Not
+     *         registered with a selector, yet.
+     * @throws IOException if opening or binding fails.
+     */
+    static DatagramChannel openReceiveChannel(boolean ipv6, int port) throws IOException {
+        DatagramChannel channel = DatagramChannel.open(family(ipv6));
+
+        try {
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            if (!ipv6) channel.setOption(StandardSocketOptions.SO_BROADCAST, true);
+
+            if (port == MdnsBrowser.PORT) {
+                channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL,
+                    MdnsBrowser.MULTICAST_TTL);
+            }
+
+            channel.bind(new InetSocketAddress(port));
+            channel.configureBlocking(false);
+        } catch (IOException e) {
+            SsdpEngine.close(channel);
+            throw e;
+        }
+
+        return channel;
+    }
+
+    /**
+     * @return all network interfaces, which are up, not a loopback and support multicast.
+     * @throws SocketException if enumerating them fails.
+     */
+    static List<NetworkInterface> interfaces() throws SocketException {
+        List<NetworkInterface> interfaces = new ArrayList<NetworkInterface>();
+        Enumeration<NetworkInterface> all = NetworkInterface.getNetworkInterfaces();
+
+        while (all != null && all.hasMoreElements()) {
+            NetworkInterface ni = all.nextElement();
+
+            if (ni.isUp() && !ni.isLoopback() && ni.supportsMulticast()) interfaces.add(ni);
+        }
+
+        return interfaces;
+    }
+
+    @Override
+    public String toString() {
+        return name + (ipv6 ? "/IPv6" : "/IPv4");
+    }
+}
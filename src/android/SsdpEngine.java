@@ -0,0 +1,1742 @@
+package com.scott.plugin;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * <p>
+ * SSDP discovery engine: Owns the multicast channel and the background thread, sends M-SEARCH
+ * requests, parses the answers and routes them to all interested {@link Subscription}s.
+ * </p>
+ * <p>
+ * Pure Java, no Android or Cordova dependencies, so it can be run, profiled and load-tested on
+ * a plain JVM. {@link ServiceDiscovery} is the Cordova adapter on top of it.
+ * </p>
+ * <p>
+ * Networking is done with non-blocking {@link DatagramChannel}s and a {@link Selector}, which
+ * need Android 7.0 (API 24).
+ * </p>
+ * <p>
+ * Discovery is dual-stack: M-SEARCH requests go out to the IPv4 group and the link-local and
+ * site-local IPv6 groups, NOTIFY messages are received on all of them. This is done on every
+ * usable network interface with one {@link SsdpChannel} per interface and family, so requests
+ * don't depend on the default route. Devices are cached by USN regardless of interface and
+ * address family, so a device answering on multiple ones is reported once, by whichever answer
+ * arrives first.
+ * </p>
+ * <p>
+ * DNS-SD service types, like "_googlecast._tcp", are browsed with mDNS on the same channels,
+ * selector and thread: The {@link MdnsBrowser} turns the responses into answers, which are
+ * routed, filtered, deduplicated and delivered like SSDP answers, so one listener can cover
+ * both protocols.
+ * </p>
+ */
+class SsdpEngine implements Runnable {
+
+    static final String ADDRESS = "239.255.255.250";
+    static final String ADDRESS_IPV6_LINK_LOCAL = "FF02::C";
+    static final String ADDRESS_IPV6_SITE_LOCAL = "FF05::C";
+    static final int PORT = 1900;
+
+    /**
+     * All SSDP multicast groups. M-SEARCH requests are encoded per group, since the HOST header
+     * differs.
+     */
+    static final String[] GROUPS = { ADDRESS, ADDRESS_IPV6_LINK_LOCAL, ADDRESS_IPV6_SITE_LOCAL };
+
+    private static final int RECEIVE_PACKET_SIZE = 9216;
+    private static final int PURGE_INTERVAL = 4000;
+    private static final int SAVE_INTERVAL = 60000;
+    private static final int INTERFACE_CHECK_INTERVAL = 5000;
+
+    /**
+     * Creates the background thread as a named daemon thread, so it's easy to spot in thread
+     * dumps and never keeps the process alive.
+     */
+    static final ThreadFactory THREAD_FACTORY = new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "ServiceDiscovery");
+            thread.setDaemon(true);
+
+            return thread;
+        }
+    };
+    private static final String NTS_BYEBYE = "ssdp:byebye";
+    private static final String REQUEST = "M-SEARCH * HTTP/1.1\r\n" +
+        "HOST: %s\r\n" +
+        "MAN: \"ssdp:discover\"\r\n" +
+        "ST: %s\r\n" +
+        "%s" +
+        "%s" +
+        "\r\n";
+
+    /**
+     * Receives the answers of a {@link Subscription}.
+     */
+    interface Listener {
+
+        /**
+         * @param answer
+         *            A dictionary containing the answer of an SSDP server.
+         */
+        void onAnswer(JSONObject answer);
+
+        /**
+         * Called instead of {@link #onAnswer(JSONObject)}, if the subscription batches answers.
+         *
+         * @param answers
+         *            A list of answers of SSDP servers.
+         */
+        void onAnswers(JSONArray answers);
+
+        /**
+         * Called on networking errors. The subscription stays active.
+         *
+         * @param message
+         *            An error message.
+         */
+        void onError(String message);
+    }
+
+    /**
+     * Keeps the network stack from filtering multicast packets, while held. Optional.
+     */
+    interface MulticastLock {
+
+        void acquire();
+
+        void release();
+    }
+
+    private final ThreadFactory mThreadFactory;
+    private final Map<String, Subscription> mSubscriptions =
+        new ConcurrentHashMap<String, Subscription>();
+    private boolean mBackgroundThreadActive;
+    private Thread mThread;
+    private static InetSocketAddress[] sGroups;
+    private final List<SsdpChannel> mChannels = new ArrayList<SsdpChannel>();
+
+    /**
+     * The channels bound to the SSDP port, shared by all interfaces. IPv4 at 0, IPv6 at 1.
+     */
+    private final DatagramChannel[] mReceiveChannels = new DatagramChannel[2];
+    private long mNextInterfaceCheck;
+
+    /**
+     * The channels bound to the mDNS port, shared by all interfaces, while any subscription
+     * browses DNS-SD service types. IPv4 at 0, IPv6 at 1. Registered with the {@link MdnsBrowser}
+     * as attachment.
+     */
+    private final DatagramChannel[] mMdnsChannels = new DatagramChannel[2];
+
+    /**
+     * Created, when the first subscription browses DNS-SD service types. Keeps its cache, while
+     * the engine lives. Only touched by the background thread.
+     */
+    private MdnsBrowser mMdns;
+    private Set<String> mBrowsed = new HashSet<String>();
+
+    /**
+     * Set, when subscriptions change, since they might want other interfaces.
+     */
+    volatile private boolean mInterfacesChanged;
+
+    /**
+     * The names of {@link #mChannels}, for {@link #getStats()}.
+     */
+    volatile private String[] mChannelNames = new String[0];
+    volatile private Selector mSelector;
+    volatile private MulticastLock mMulticastLock;
+
+    /**
+     * The lock, while it's held, otherwise null. Only touched by the background thread.
+     */
+    private MulticastLock mHeldLock;
+
+    /**
+     * The number of subscriptions, which currently need the multicast lock.
+     */
+    volatile private int mLockHolders;
+    private final ByteBuffer mReceiveBuffer = ByteBuffer.allocateDirect(RECEIVE_PACKET_SIZE);
+    private final byte[] mPacket = new byte[RECEIVE_PACKET_SIZE];
+    private long mNextPurge;
+    private final SsdpStats mStats = new SsdpStats();
+
+    /**
+     * The headers any subscription needs or null, if one of them wants all.
+     */
+    volatile private HeaderSet mHeaders;
+
+    /**
+     * Created, when the first subscription wants device descriptions.
+     */
+    private DescriptionFetcher mFetcher;
+
+    /**
+     * Answers, whose descriptions were fetched, waiting for the background thread to deliver
+     * them.
+     */
+    private final Queue<Described> mDescribed = new ConcurrentLinkedQueue<Described>();
+
+    /**
+     * When the last M-SEARCH requests were sent or -1, and when the last response to them was
+     * received or -1. Only touched by the background thread.
+     */
+    private long mSearchSent = -1;
+    private long mLastResponse = -1;
+
+    /**
+     * Persists {@link #mKnown} for a warm start. May be null.
+     */
+    volatile private DeviceStore mStore;
+
+    /**
+     * All devices seen by any subscription, or loaded from {@link #mStore}. Only maintained, if
+     * there is a store.
+     */
+    private final DeviceCache mKnown = new DeviceCache(DeviceCache.DEFAULT_CAPACITY);
+    private boolean mStoreLoaded;
+    private boolean mKnownChanged;
+    private long mNextSave;
+
+    /**
+     * New subscriptions, which still need to receive the known devices.
+     */
+    private final Queue<Subscription> mWarmStart = new ConcurrentLinkedQueue<Subscription>();
+
+    SsdpEngine() {
+        this(THREAD_FACTORY);
+    }
+
+    /**
+     * @param threadFactory
+     *            Creates the background thread, whenever it needs to be started.
+     */
+    SsdpEngine(ThreadFactory threadFactory) {
+        mThreadFactory = threadFactory;
+    }
+
+    /**
+     * @param multicastLock
+     *            Held while at least one subscription needs it. See
+     *            {@link Subscription#needsMulticastLock(long)}. May be null.
+     */
+    void setMulticastLock(MulticastLock multicastLock) {
+        mMulticastLock = multicastLock;
+    }
+
+    /**
+     * Enables the warm start: Known devices are loaded from the store by the background thread
+     * and reported to new subscriptions immediately, flagged as "cached". They are saved back
+     * periodically and when the background thread stops.
+     *
+     * @param store
+     *            Where to keep the known devices. Must be set before the first subscription.
+     */
+    void setStore(DeviceStore store) {
+        mStore = store;
+    }
+
+    /**
+     * Adds a subscription or replaces the one with the same ID and starts the background thread,
+     * if it's not running, yet.
+     *
+     * @param subscription
+     *            A fully configured subscription.
+     */
+    void subscribe(Subscription subscription) {
+        synchronized (this) {
+            mSubscriptions.put(subscription.id, subscription);
+            mWarmStart.add(subscription);
+            mInterfacesChanged = true;
+
+            updateHeaders();
+
+            if (!mBackgroundThreadActive) {
+                mBackgroundThreadActive = true;
+                mThread = mThreadFactory.newThread(this);
+                mThread.start();
+            }
+        }
+
+        // Send the M-SEARCH for the new subscription right away.
+        wakeup();
+    }
+
+    /**
+     * Removes a subscription. When the last one is removed, the background thread stops
+     * immediately.
+     *
+     * @param id
+     *            The ID of the subscription.
+     */
+    void unsubscribe(String id) {
+        mSubscriptions.remove(id);
+        mInterfacesChanged = true;
+
+        updateHeaders();
+
+        wakeup();
+    }
+
+    /**
+     * Removes all subscriptions. The background thread stops immediately.
+     */
+    void unsubscribeAll() {
+        mSubscriptions.clear();
+        mInterfacesChanged = true;
+
+        updateHeaders();
+
+        wakeup();
+    }
+
+    /**
+     * Removes all subscriptions and waits for the background thread to stop.
+     *
+     * @param timeout
+     *            The maximum time to wait in milliseconds.
+     * @return true, if the background thread stopped in time.
+     */
+    boolean shutdown(long timeout) {
+        unsubscribeAll();
+
+        Thread thread;
+
+        synchronized (this) {
+            thread = mThread;
+        }
+
+        if (thread != null && thread != Thread.currentThread()) {
+            try {
+                thread.join(timeout);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        return !isActive();
+    }
+
+    /**
+     * Recomputes the headers the parser needs to keep: The union of the headers all
+     * subscriptions asked for and their filters look at, plus the ones needed for routing.
+     */
+    private synchronized void updateHeaders() {
+        List<String> headers = new ArrayList<String>(Arrays.asList(SsdpParser.HOT_HEADERS));
+
+        for (Subscription subscription : mSubscriptions.values()) {
+            if (subscription.headers == null) {
+                mHeaders = null;
+                return;
+            }
+
+            headers.addAll(Arrays.asList(subscription.headers.names()));
+
+            if (subscription.filter != null) headers.addAll(subscription.filter.headers());
+        }
+
+        mHeaders = new HeaderSet(headers);
+    }
+
+    /**
+     * @return the number of active subscriptions.
+     */
+    int subscriptionCount() {
+        return mSubscriptions.size();
+    }
+
+    /**
+     * @return true, if the background thread is running.
+     */
+    synchronized boolean isActive() {
+        return mBackgroundThreadActive;
+    }
+
+    /**
+     * @return the state of the background thread. {@link Thread.State#NEW}, if it was never
+     *         started, {@link Thread.State#TERMINATED}, after it stopped.
+     */
+    synchronized Thread.State threadState() {
+        return mThread != null ? mThread.getState() : Thread.State.NEW;
+    }
+
+    /**
+     * @return the live counters and histograms. Native API, e.g. for tests and the benchmarks.
+     */
+    SsdpStats stats() {
+        return mStats;
+    }
+
+    /**
+     * @return a snapshot of all counters and histograms plus the number of listeners, the total
+     *         number of devices in their caches and whether and in which state the
+     *         background thread is running.
+     */
+    JSONObject getStats() {
+        JSONObject stats = mStats.toJSON();
+        int cacheSize = 0;
+
+        for (Subscription subscription : mSubscriptions.values()) {
+            cacheSize += subscription.cache.size();
+        }
+
+        try {
+            stats.put("cacheSize", cacheSize);
+            stats.put("listeners", mSubscriptions.size());
+            stats.put("active", isActive());
+            stats.put("multicastLockHolders", mLockHolders);
+            stats.put("interfaces", new JSONArray(Arrays.asList(mChannelNames)));
+            stats.put("threadState", threadState().name());
+        } catch (JSONException e) {
+            // This should not happen.
+            e.printStackTrace();
+        }
+
+        return stats;
+    }
+
+    /**
+     * <p>
+     * Background thread, started by {@link #subscribe(Subscription)}. Runs, until the last
+     * subscription is removed.
+     * </p>
+     * <p>
+     * A {@link RuntimeException}, e.g. thrown by a listener, only ends the current cycle. If the
+     * thread dies anyway, it releases the network and the next subscription starts a new one.
+     * </p>
+     */
+    @Override
+    public void run() {
+        boolean stopped = false;
+
+        try {
+            load();
+
+            while (true) {
+                while (!mSubscriptions.isEmpty()) {
+                    try {
+                        warmStart();
+
+                        broadcast();
+
+                        receive();
+
+                        purge();
+                    } catch (IOException e) {
+                        SsdpLog.w(SsdpLog.TAG, "Networking failed, starting over.", e);
+
+                        // Start over with a fresh channel.
+                        close();
+
+                        for (Subscription subscription : mSubscriptions.values()) {
+                            subscription.error(e.getMessage());
+                        }
+
+                        if (!pause()) break;
+                    } catch (RuntimeException e) {
+                        // A bug, but one bad packet or listener mustn't end discovery.
+                        SsdpLog.w(SsdpLog.TAG, "Discovery failed, going on.", e);
+
+                        if (!pause()) break;
+                    }
+                }
+
+                close();
+
+                save(now());
+
+                synchronized (this) {
+                    // A listener might have been added, while we were closing.
+                    if (mSubscriptions.isEmpty()) {
+                        mBackgroundThreadActive = false;
+                        stopped = true;
+                        return;
+                    }
+                }
+            }
+        } finally {
+            if (!stopped) {
+                close();
+
+                synchronized (this) {
+                    mBackgroundThreadActive = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Keeps the loop frequency below 1/s after failures.
+     *
+     * @return false, if the thread was interrupted.
+     */
+    private boolean pause() {
+        try {
+            Thread.sleep(1000);
+            return true;
+        } catch (InterruptedException e) {
+            return false;
+        }
+    }
+
+    /**
+     * <p>
+     * Routes the answer of a server to all subscriptions, which are interested in it. Each
+     * subscription receives it, if it doesn't contain a USN or if the USN was not seen before by
+     * that subscription or its last answer expired according to its "CACHE-CONTROL: max-age"
+     * header.
+     * </p>
+     * <p>
+     * An "ssdp:byebye" NOTIFY of a known device is reported and removes the device from the
+     * subscription's {@link DeviceCache}, so it will be reported again, when it comes back.
+     * </p>
+     * <p>
+     * A device, which a subscription only knows from the warm start, is reported again with its
+     * first live answer, to confirm it.
+     * </p>
+     * <p>
+     * Subscriptions with a {@link MessageFilter} only receive answers matching it. Filtering
+     * and deduplication only use the direct fields of the message. The JSON forms
+     * are built once per message and only, if at least one subscription receives it.
+     * </p>
+     * <p>
+     * Only called by the background thread. Package-private for the benchmarks.
+     * </p>
+     *
+     * @param message The parsed answer of an SSDP server.
+     */
+    void result(SsdpMessage message) {
+        if (message == null) return;
+
+        String type = message.type;
+        long now = now();
+
+        // DNS-SD service instances are counted by the datagrams, they were resolved from.
+        if (!message.mdns) {
+            mStats.type(type);
+
+            if (SsdpParser.TYPE_RESPONSE.equals(type) && mSearchSent >= 0) {
+                if (mLastResponse < 0) mStats.firstResponseDelay.record(now - mSearchSent);
+
+                mLastResponse = now;
+            }
+        }
+
+        if (SsdpParser.TYPE_UNKNOWN.equals(type)) {
+            // We don't understand this. Probably doesn't make sense.
+            return;
+        }
+
+        if (SsdpParser.TYPE_MSEARCH.equals(type)) {
+            // We're not interested in M-SEARCH requests. (Probably our own, anyway.)
+            return;
+        }
+
+        boolean isNotify = SsdpParser.TYPE_NOTIFY.equals(type);
+        boolean isByebye = isNotify && NTS_BYEBYE.equals(message.nts);
+        String usn = message.usn;
+        long maxAge = DeviceCache.parseMaxAge(message.cacheControl);
+
+        if (usn != null && mStore != null) {
+            if (isByebye) {
+                mKnownChanged |= mKnown.remove(usn);
+            }
+            else {
+                mKnown.put(usn, message, maxAge, now);
+                mKnownChanged = true;
+            }
+        }
+
+        // Only built for answers, which are actually delivered.
+        JSONObject answer = null;
+        JSONObject normalized = null;
+
+        for (Subscription subscription : mSubscriptions.values()) {
+            if (isNotify && !subscription.listenForNotifies) {
+                noticed(subscription, message, isByebye, now);
+                continue;
+            }
+
+            if (!subscription.matches(message)) {
+                // That's strange stuff from devices this listener doesn't want - ignore.
+                continue;
+            }
+
+            if (!subscription.usesInterface(message.networkInterface)) continue;
+
+            if (subscription.filter != null && !subscription.filter.matches(message)) {
+                mStats.filteredOut.incrementAndGet();
+                continue;
+            }
+
+            boolean isNew;
+
+            if (usn == null) {
+                isNew = true;
+            }
+            else if (isByebye) {
+                // Device left: Forget it, so it gets reported again, when it comes back.
+                // Devices repeat their byebye, so only report the first one.
+                isNew = subscription.cache.remove(usn);
+            }
+            else {
+                isNew = subscription.cache.put(usn, message, maxAge, now);
+            }
+
+            if (!isNew) {
+                mStats.duplicatesSuppressed.incrementAndGet();
+                continue;
+            }
+
+            // A device appeared or left on its own: Things are changing, search more often again.
+            if (isNotify) subscription.scheduler.reset(now);
+
+            if (subscription.fetchDescription && !isByebye && message.location != null) {
+                describe(subscription, message, now);
+                continue;
+            }
+
+            if (subscription.headers != null) {
+                // Projections differ per subscription, can't share these.
+                subscription.deliver(message.toJSON(subscription.normalizeHeaders,
+                    subscription.headers), now);
+            }
+            else if (subscription.normalizeHeaders) {
+                if (normalized == null) normalized = message.toJSON(true);
+
+                subscription.deliver(normalized, now);
+            }
+            else {
+                if (answer == null) answer = message.toJSON();
+
+                subscription.deliver(answer, now);
+            }
+        }
+    }
+
+    /**
+     * A NOTIFY, which a subscription doesn't listen for, isn't delivered, but a device appearing
+     * or leaving on its own still resets the backoff of its searches: An "ssdp:alive" of a device,
+     * it doesn't know, yet, or an "ssdp:byebye" of one, it knows. The cache of the subscription
+     * stays untouched, since it only holds what was delivered.
+     *
+     * @param subscription
+     *            A subscription, which doesn't listen for NOTIFY messages.
+     * @param message
+     *            A NOTIFY message.
+     * @param isByebye
+     *            True, if it's an "ssdp:byebye".
+     * @param now
+     *            The current time in milliseconds of a monotonic clock.
+     */
+    private void noticed(Subscription subscription, SsdpMessage message, boolean isByebye,
+                         long now) {
+
+        if (message.usn == null || !subscription.matches(message.nt)
+            || !subscription.usesInterface(message.networkInterface)) {
+
+            return;
+        }
+
+        if (subscription.filter != null && !subscription.filter.matches(message)) return;
+
+        if (subscription.cache.isKnown(message.usn, now) == isByebye) {
+            subscription.scheduler.reset(now);
+        }
+    }
+
+    /**
+     * <p>
+     * Reports all known devices to new subscriptions, as far as they are interested in them,
+     * with an additional <code>"cached": true</code>. Descriptions are not fetched for them, that
+     * happens, when the device confirms with a live answer. Descriptions, which are known for the
+     * current CONFIGID.UPNP.ORG, e.g. from the store, are added, though.
+     * </p>
+     * <p>
+     * New subscriptions, which browse DNS-SD service types, also get the instances, the
+     * {@link MdnsBrowser} can resolve from its cache, as live answers. Responders won't send
+     * them again, since they are known answers of the queries.
+     * </p>
+     */
+    private void warmStart() {
+        List<DeviceCache.Device> devices = null;
+        long now = now();
+        Subscription subscription;
+        boolean browsing = false;
+
+        while ((subscription = mWarmStart.poll()) != null) {
+            // Removed or replaced in the meantime.
+            if (mSubscriptions.get(subscription.id) != subscription) continue;
+
+            if (!subscription.dnsServiceTypes.isEmpty()) browsing = true;
+
+            if (devices == null) devices = mKnown.snapshot(now);
+
+            for (DeviceCache.Device device : devices) {
+                SsdpMessage message = device.answer;
+
+                if (!subscription.matches(message)) continue;
+
+                if (!subscription.usesInterface(message.networkInterface)) continue;
+
+                if (subscription.filter != null && !subscription.filter.matches(message)) continue;
+
+                if (!subscription.cache.putCached(device, now)) continue;
+
+                JSONObject answer = message.toJSON(subscription.normalizeHeaders,
+                    subscription.headers);
+
+                if (subscription.fetchDescription && message.location != null
+                    && mFetcher != null) {
+
+                    JSONObject description = mFetcher.cached(DescriptionFetcher.key(message.usn,
+                        message.configId));
+
+                    if (description != null) addDescription(answer, description, null);
+                }
+
+                try {
+                    answer.put("cached", true);
+                } catch (JSONException e) {
+                    // This should not happen.
+                    e.printStackTrace();
+                }
+
+                subscription.deliver(answer, now);
+            }
+        }
+
+        if (browsing && mMdns != null) {
+            // Subscriptions, which know them already, drop them as duplicates.
+            for (SsdpMessage answer : mMdns.resolved(now)) {
+                result(answer);
+            }
+        }
+    }
+
+    /**
+     * Loads the known devices from the store, once.
+     */
+    private void load() {
+        DeviceStore store = mStore;
+
+        if (store == null || mStoreLoaded) return;
+
+        mStoreLoaded = true;
+
+        long now = now();
+
+        for (DeviceCache.Device device : store.load(now)) {
+            mKnown.putCached(device, now);
+
+            if (device.description != null) {
+                if (mFetcher == null) mFetcher = new DescriptionFetcher();
+
+                SsdpMessage answer = device.answer;
+
+                mFetcher.put(DescriptionFetcher.key(answer.usn, answer.configId),
+                    device.description);
+            }
+        }
+
+        mNextSave = now + SAVE_INTERVAL;
+    }
+
+    /**
+     * Saves the known devices to the store, if they changed. Their descriptions are taken from
+     * the cache of the {@link DescriptionFetcher}, so they are valid for the stored
+     * CONFIGID.UPNP.ORG only.
+     *
+     * @param now
+     *            The current time in milliseconds of a monotonic clock.
+     */
+    private void save(long now) {
+        DeviceStore store = mStore;
+
+        if (store == null || !mKnownChanged) return;
+
+        mKnownChanged = false;
+        mNextSave = now + SAVE_INTERVAL;
+
+        List<DeviceCache.Device> devices = mKnown.snapshot(now);
+
+        if (mFetcher != null) {
+            for (DeviceCache.Device device : devices) {
+                SsdpMessage answer = device.answer;
+
+                device.description = mFetcher.cached(DescriptionFetcher.key(answer.usn,
+                    answer.configId));
+            }
+        }
+
+        try {
+            store.save(devices, now);
+        } catch (IOException e) {
+            SsdpLog.w(SsdpLog.TAG, "Saving known devices failed.", e);
+        }
+    }
+
+    /**
+     * Delivers the answer with the description of the device. From the cache immediately, if
+     * possible. Otherwise, it is fetched in the background and then handed back to the
+     * background thread by {@link #deliverDescribed()}. If fetching fails, the answer is
+     * delivered with a "descriptionError" instead.
+     *
+     * @param subscription
+     *            The subscription to deliver to.
+     * @param message
+     *            A new answer with a LOCATION.
+     * @param now
+     *            The current time in milliseconds of a monotonic clock.
+     */
+    private void describe(final Subscription subscription, SsdpMessage message, long now) {
+        // Not shared with other subscriptions, since it's modified on another thread.
+        final JSONObject answer = message.toJSON(subscription.normalizeHeaders,
+            subscription.headers);
+
+        if (mFetcher == null) mFetcher = new DescriptionFetcher();
+
+        String key = DescriptionFetcher.key(message.usn, message.configId);
+        JSONObject description = mFetcher.cached(key);
+
+        if (description != null) {
+            mStats.descriptionCacheHits.incrementAndGet();
+
+            addDescription(answer, description, null);
+            subscription.deliver(answer, now);
+
+            return;
+        }
+
+        mFetcher.fetch(key, message.location, new DescriptionFetcher.Callback() {
+            @Override
+            public void onDescription(JSONObject description, String error) {
+                if (description != null) {
+                    mStats.descriptionsFetched.incrementAndGet();
+                }
+                else {
+                    mStats.descriptionErrors.incrementAndGet();
+                }
+
+                addDescription(answer, description, error);
+
+                mDescribed.add(new Described(subscription, answer));
+
+                wakeup();
+            }
+        });
+    }
+
+    private static void addDescription(JSONObject answer, JSONObject description,
+                                       String error) {
+        try {
+            if (description != null) {
+                answer.put("description", description);
+            }
+            else {
+                answer.put("descriptionError", error);
+            }
+        } catch (JSONException e) {
+            // This should not happen.
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Delivers answers, whose descriptions were fetched in the meantime, unless their
+     * subscription was removed or replaced.
+     */
+    private void deliverDescribed() {
+        long now = now();
+        Described described;
+
+        while ((described = mDescribed.poll()) != null) {
+            if (mSubscriptions.get(described.subscription.id) == described.subscription) {
+                described.subscription.deliver(described.answer, now);
+            }
+        }
+    }
+
+    /**
+     * Sends all batches, whose delay is reached.
+     */
+    private void flush() {
+        long now = now();
+
+        for (Subscription subscription : mSubscriptions.values()) {
+            if (subscription.batchDeadline() <= now) subscription.flush();
+        }
+    }
+
+    /**
+     * Removes expired devices from all caches, once per {@link #PURGE_INTERVAL}, and saves the
+     * known devices, once per {@link #SAVE_INTERVAL}.
+     */
+    private void purge() {
+        long now = now();
+
+        if (now < mNextPurge) return;
+
+        for (Subscription subscription : mSubscriptions.values()) {
+            subscription.cache.purge(now);
+        }
+
+        mKnown.purge(now);
+
+        if (mMdns != null) mMdns.purge(now);
+
+        if (now >= mNextSave) save(now);
+
+        mNextPurge = now + PURGE_INTERVAL;
+    }
+
+    /**
+     * @return the current time in milliseconds of a monotonic clock.
+     */
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    /**
+     * Checks, if the {@link Selector} is already opened, and if not, does open it. Then checks
+     * the network interfaces, if due.
+     *
+     * @throws IOException if an I/O exception occurs while opening the {@link Selector} or no
+     *                     interface can be used.
+     */
+    private void open() throws IOException {
+        if (mSelector == null) {
+            mSelector = Selector.open();
+            mNextInterfaceCheck = 0;
+        }
+
+        checkInterfaces(now());
+    }
+
+    /**
+     * <p>
+     * Once per {@link #INTERFACE_CHECK_INTERVAL} and when subscriptions changed, enumerates the
+     * network interfaces, which are up, not a loopback and support multicast, and syncs the
+     * {@link SsdpChannel}s with them: One per interface and address family, if the interface has
+     * an address of that family and at least one subscription wants the interface. Channels of
+     * interfaces, which went down, are not wanted anymore or changed their address, are closed.
+     * So interface changes are picked up without restarting any subscription.
+     * </p>
+     * <p>
+     * If one channel fails to open, discovery continues with the others.
+     * </p>
+     *
+     * @param now
+     *            The current time in milliseconds of a monotonic clock.
+     * @throws IOException if no channel at all is open.
+     */
+    private void checkInterfaces(long now) throws IOException {
+        if (now < mNextInterfaceCheck && !mInterfacesChanged) return;
+
+        mNextInterfaceCheck = now + INTERFACE_CHECK_INTERVAL;
+        mInterfacesChanged = false;
+
+        Set<String> wanted = wantedInterfaces();
+        List<NetworkInterface> interfaces = SsdpChannel.interfaces();
+        IOException failure = null;
+        boolean changed = false;
+
+        Iterator<SsdpChannel> channels = mChannels.iterator();
+
+        while (channels.hasNext()) {
+            SsdpChannel channel = channels.next();
+
+            if (!isAvailable(channel, interfaces, wanted)) {
+                SsdpLog.log(SsdpLog.INFO, SsdpLog.TAG, "Closing %s.", channel);
+
+                channel.close();
+                channels.remove();
+                changed = true;
+            }
+        }
+
+        for (NetworkInterface ni : interfaces) {
+            if (wanted != null && !wanted.contains(ni.getName())) continue;
+
+            for (boolean ipv6 : new boolean[] { false, true }) {
+                InetAddress address = SsdpChannel.address(ni, ipv6);
+
+                if (address == null || find(ni.getName(), ipv6) != null) continue;
+
+                try {
+                    SsdpChannel channel = SsdpChannel.open(ni, ipv6, address,
+                        receiveChannel(ipv6), mSelector);
+
+                    mChannels.add(channel);
+                    changed = true;
+
+                    SsdpLog.log(SsdpLog.INFO, SsdpLog.TAG, "Opened %s.", channel);
+                } catch (IOException e) {
+                    SsdpLog.w(SsdpLog.TAG, "Can't open " + ni.getName()
+                        + (ipv6 ? "/IPv6" : "/IPv4") + ".", e);
+
+                    failure = e;
+                }
+            }
+        }
+
+        syncMdns();
+
+        if (changed) {
+            for (int i = 0; i < mReceiveChannels.length; i++) {
+                if (find(null, i == 1) == null) {
+                    close(mReceiveChannels[i]);
+                    mReceiveChannels[i] = null;
+                }
+            }
+
+            String[] names = new String[mChannels.size()];
+
+            for (int i = 0; i < names.length; i++) {
+                names[i] = mChannels.get(i).toString();
+            }
+
+            mChannelNames = names;
+        }
+
+        if (mChannels.isEmpty()) {
+            throw failure != null ? failure
+                : new IOException("No network interface available for multicast!");
+        }
+    }
+
+    /**
+     * <p>
+     * While any subscription browses DNS-SD service types, joins the mDNS group on every
+     * channel. Otherwise, leaves the groups and closes the shared mDNS channels.
+     * </p>
+     * <p>
+     * mDNS is optional: If joining fails, e.g. because another socket holds the mDNS port
+     * exclusively, SSDP goes on and joining is retried with the next interface check.
+     * </p>
+     */
+    private void syncMdns() {
+        Set<String> browsed = new HashSet<String>();
+
+        for (Subscription subscription : mSubscriptions.values()) {
+            browsed.addAll(subscription.dnsServiceTypes);
+        }
+
+        if (!browsed.equals(mBrowsed)) {
+            mBrowsed = browsed;
+
+            if (mMdns == null && !browsed.isEmpty()) mMdns = new MdnsBrowser(mStats);
+
+            if (mMdns != null) mMdns.setServiceTypes(browsed);
+        }
+
+        for (SsdpChannel channel : mChannels) {
+            if (browsed.isEmpty()) {
+                channel.leaveMdns();
+            }
+            else if (!channel.joinedMdns()) {
+                try {
+                    channel.joinMdns(mdnsChannel(channel.ipv6));
+
+                    SsdpLog.log(SsdpLog.INFO, SsdpLog.TAG, "Joined mDNS on %s.", channel);
+                } catch (IOException e) {
+                    SsdpLog.w(SsdpLog.TAG, "Can't join mDNS on " + channel + ".", e);
+                }
+            }
+        }
+
+        for (int i = 0; i < mMdnsChannels.length; i++) {
+            if (mMdnsChannels[i] == null) continue;
+
+            boolean joined = false;
+
+            for (SsdpChannel channel : mChannels) {
+                if (channel.ipv6 == (i == 1) && channel.joinedMdns()) joined = true;
+            }
+
+            if (!joined) {
+                close(mMdnsChannels[i]);
+                mMdnsChannels[i] = null;
+            }
+        }
+    }
+
+    /**
+     * @param ipv6
+     *            True for IPv6, false for IPv4.
+     * @return the shared channel of the family bound to the mDNS port. Opened and registered
+     *         with the {@link Selector}, if not done, yet.
+     * @throws IOException if opening fails.
+     */
+    private DatagramChannel mdnsChannel(boolean ipv6) throws IOException {
+        int index = ipv6 ? 1 : 0;
+
+        if (mMdnsChannels[index] == null) {
+            DatagramChannel channel = SsdpChannel.openReceiveChannel(ipv6, MdnsBrowser.PORT);
+
+            try {
+                channel.register(mSelector, SelectionKey.OP_READ, mMdns);
+            } catch (IOException e) {
+                close(channel);
+                throw e;
+            }
+
+            mMdnsChannels[index] = channel;
+        }
+
+        return mMdnsChannels[index];
+    }
+
+    /**
+     * @return the names of the interfaces any subscription wants or null, if one wants all.
+     */
+    private Set<String> wantedInterfaces() {
+        Set<String> wanted = new HashSet<String>();
+
+        for (Subscription subscription : mSubscriptions.values()) {
+            if (subscription.interfaces == null) return null;
+
+            wanted.addAll(subscription.interfaces);
+        }
+
+        return wanted;
+    }
+
+    /**
+     * @param channel
+     *            An open channel.
+     * @param interfaces
+     *            The currently usable interfaces.
+     * @param wanted
+     *            The names of the wanted interfaces or null for all.
+     * @return true, if the channel's interface is still up, wanted and has the same address.
+     */
+    private static boolean isAvailable(SsdpChannel channel, List<NetworkInterface> interfaces,
+                                       Set<String> wanted) {
+
+        if (wanted != null && !wanted.contains(channel.name)) return false;
+
+        for (NetworkInterface ni : interfaces) {
+            if (channel.matches(ni, SsdpChannel.address(ni, channel.ipv6))) return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * @param name
+     *            The name of a network interface or null for any.
+     * @param ipv6
+     *            True for IPv6, false for IPv4.
+     * @return the open channel for that interface and family or null.
+     */
+    private SsdpChannel find(String name, boolean ipv6) {
+        for (SsdpChannel channel : mChannels) {
+            if (channel.ipv6 == ipv6 && (name == null || channel.name.equals(name))) {
+                return channel;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @param ipv6
+     *            True for IPv6, false for IPv4.
+     * @return the shared channel of the family bound to the SSDP port. Opened and registered with
+     *         the {@link Selector}, if not done, yet.
+     * @throws IOException if opening fails.
+     */
+    private DatagramChannel receiveChannel(boolean ipv6) throws IOException {
+        int index = ipv6 ? 1 : 0;
+
+        if (mReceiveChannels[index] == null) {
+            DatagramChannel channel = SsdpChannel.openReceiveChannel(ipv6, PORT);
+
+            try {
+                channel.register(mSelector, SelectionKey.OP_READ);
+            } catch (IOException e) {
+                close(channel);
+                throw e;
+            }
+
+            mReceiveChannels[index] = channel;
+        }
+
+        return mReceiveChannels[index];
+    }
+
+    /**
+     * @param source
+     *            The sender of a datagram received on a shared channel.
+     * @return the name of the interface, the sender is local to, or null.
+     */
+    private String localInterface(InetAddress source) {
+        for (SsdpChannel channel : mChannels) {
+            if (channel.isLocal(source)) return channel.name;
+        }
+
+        return null;
+    }
+
+    /**
+     * @param index
+     *            An index into {@link #GROUPS}.
+     * @return the socket address of the multicast group.
+     * @throws IOException never, the groups are literals.
+     */
+    static synchronized InetSocketAddress group(int index) throws IOException {
+        if (sGroups == null) {
+            InetSocketAddress[] groups = new InetSocketAddress[GROUPS.length];
+
+            for (int i = 0; i < GROUPS.length; i++) {
+                groups[i] = new InetSocketAddress(InetAddress.getByName(GROUPS[i]), PORT);
+            }
+
+            sGroups = groups;
+        }
+
+        return sGroups[index];
+    }
+
+    /**
+     * Broadcasts the SSDP M-SEARCH requests for every subscription, which is due, one for each of
+     * its service types and interfaces, back-to-back. Subscriptions for the same service type
+     * share one request per interface. Transparently tries to open and configure a
+     * {@link DatagramChannel}, if not done, yet. The requests are encoded once per subscription,
+     * see {@link Subscription#requests()}, so sending doesn't allocate anything. The DNS-SD
+     * service types of the subscriptions, whose query is due, are browsed with one mDNS query
+     * per interface, which is encoded per search, since its known answers change. mDNS queries
+     * follow their own backoff, see {@link Subscription#mdnsScheduler}.
+     *
+     * @throws IOException if an I/O exception occurs while opening the {@link DatagramChannel}.
+     */
+    private void broadcast() throws IOException {
+        open();
+
+        long now = now();
+
+        IOException failure = null;
+        boolean sent = false;
+        boolean cycleStarted = false;
+        Map<SsdpChannel, Set<String>> queries = null;
+
+        for (SsdpChannel channel : mChannels) {
+            channel.sent.clear();
+        }
+
+        for (Subscription subscription : mSubscriptions.values()) {
+            if (!subscription.broadcastMsearch) continue;
+
+            if (!subscription.dnsServiceTypes.isEmpty()
+                && subscription.mdnsScheduler.next() <= now) {
+
+                subscription.mdnsScheduler.sent(now);
+                subscription.searchSent(now);
+
+                for (SsdpChannel channel : mChannels) {
+                    if (!subscription.usesInterface(channel.name) || !channel.joinedMdns()) {
+                        continue;
+                    }
+
+                    if (queries == null) {
+                        queries = new LinkedHashMap<SsdpChannel, Set<String>>();
+                    }
+
+                    Set<String> serviceTypes = queries.get(channel);
+
+                    if (serviceTypes == null) {
+                        serviceTypes = new LinkedHashSet<String>();
+                        queries.put(channel, serviceTypes);
+                    }
+
+                    serviceTypes.addAll(subscription.dnsServiceTypes);
+                }
+            }
+
+            if (subscription.requests().isEmpty() || subscription.scheduler.next() > now) {
+                continue;
+            }
+
+            subscription.scheduler.sent(now);
+            subscription.searchSent(now);
+
+            if (!cycleStarted) {
+                cycleStarted = true;
+                searchSent(now);
+            }
+
+            for (Map.Entry<String, ByteBuffer[]> request : subscription.requests().entrySet()) {
+                for (SsdpChannel channel : mChannels) {
+                    if (!subscription.usesInterface(channel.name)
+                        || !channel.sent.add(request.getKey())) {
+
+                        continue;
+                    }
+
+                    for (int group : channel.groups) {
+                        ByteBuffer datagram = request.getValue()[group];
+                        datagram.rewind();
+
+                        try {
+                            // A non-blocking channel silently drops the datagram, if the buffer
+                            // is full.
+                            if (channel.send(datagram, group(group))) {
+                                sent = true;
+                            }
+                            else {
+                                mStats.sendErrors.incrementAndGet();
+                            }
+                        } catch (IOException e) {
+                            // E.g. no route for site-local IPv6. Fine, as long as another
+                            // channel works.
+                            mStats.sendErrors.incrementAndGet();
+                            failure = e;
+                        }
+                    }
+                }
+            }
+        }
+
+        if (queries != null) {
+            for (Map.Entry<SsdpChannel, Set<String>> query : queries.entrySet()) {
+                try {
+                    if (query.getKey().sendMdns(mMdns.query(query.getValue(), now))) {
+                        mStats.mdnsQueriesSent.incrementAndGet();
+                        sent = true;
+                    }
+                    else {
+                        mStats.sendErrors.incrementAndGet();
+                    }
+                } catch (IOException e) {
+                    mStats.sendErrors.incrementAndGet();
+                    failure = e;
+                }
+            }
+        }
+
+        if (failure != null && !sent) throw failure;
+    }
+
+    /**
+     * Encodes an M-SEARCH request.
+     *
+     * @param group
+     *            An index into {@link #GROUPS}, the group the request is sent to.
+     * @param serviceType
+     *            The value of the ST header.
+     * @param mx
+     *            The value of the MX header.
+     * @param userAgent
+     *            The value of the USER-AGENT header. May be null to leave it out.
+     * @return the ready-to-send datagram in a direct buffer.
+     */
+    static ByteBuffer request(int group, String serviceType, int mx, String userAgent) {
+        return request(host(GROUPS[group], PORT), serviceType, mx, userAgent);
+    }
+
+    /**
+     * @param address
+     *            An IP address literal.
+     * @param port
+     *            A port.
+     * @return the value for a HOST header. IPv6 literals are put in brackets, their scope is
+     *         removed, since it's local to this host.
+     */
+    static String host(String address, int port) {
+        if (address.indexOf(':') >= 0) {
+            int scope = address.indexOf('%');
+
+            address = '[' + (scope < 0 ? address : address.substring(0, scope)) + ']';
+        }
+
+        return address + ':' + port;
+    }
+
+    /**
+     * Encodes an M-SEARCH request.
+     *
+     * @param host
+     *            The value of the HOST header, see {@link #host(String, int)}: The multicast group
+     *            or, for unicast M-SEARCH requests (UPnP Device Architecture 2.0), the device.
+     * @param serviceType
+     *            The value of the ST header.
+     * @param mx
+     *            The value of the MX header or -1 to leave it out, like unicast requests do.
+     * @param userAgent
+     *            The value of the USER-AGENT header. May be null to leave it out.
+     * @return the ready-to-send datagram in a direct buffer.
+     */
+    static ByteBuffer request(String host, String serviceType, int mx, String userAgent) {
+        byte[] request = String.format(Locale.US, REQUEST, host, serviceType,
+            mx >= 0 ? "MX: " + mx + "\r\n" : "",
+            userAgent != null ? "USER-AGENT: " + userAgent + "\r\n" : "")
+            .getBytes(StandardCharsets.UTF_8);
+
+        ByteBuffer datagram = ByteBuffer.allocateDirect(request.length);
+        datagram.put(request);
+        datagram.flip();
+
+        return datagram;
+    }
+
+    /**
+     * Records the delay of the last response to the previous M-SEARCH requests and starts
+     * timing the new ones.
+     *
+     * @param now
+     *            The current time in milliseconds of a monotonic clock, or -1, to stop timing.
+     */
+    private void searchSent(long now) {
+        if (mSearchSent >= 0 && mLastResponse >= 0) {
+            mStats.lastResponseDelay.record(mLastResponse - mSearchSent);
+        }
+
+        mSearchSent = now;
+        mLastResponse = -1;
+    }
+
+    /**
+     * <p>
+     * Will listen for answers from SSDP servers, until the next M-SEARCH request is due.
+     * Transparently tries to open and configure a {@link DatagramChannel}, if not done, yet.
+     * </p>
+     * <p>
+     * When an answer was received, hands it immediately to the interested subscriptions, which
+     * deliver it right away or add it to their current batch. A batch is sent, when it's full or
+     * when its delay is reached, even if that is in the middle of a read.
+     * </p>
+     * <p>
+     * Waits in {@link Selector#select(long)} instead of a blocking read, so no exceptions are
+     * involved in the timeout handling, and {@link #wakeup()} can end the wait immediately.
+     * </p>
+     * <p>
+     * The direct receive buffer and the parse buffer are reused for every datagram, so the
+     * steady-state loop doesn't allocate anything before parsing.
+     * </p>
+     * <p>
+     * The multicast lock is acquired and released only, when the number of subscriptions needing
+     * it changes between zero and non-zero, not on every cycle.
+     * </p>
+     *
+     * @throws IOException if an I/O exception occurs while opening the {@link DatagramChannel}.
+     */
+    private void receive() throws IOException {
+        open();
+
+        long end = nextSearch();
+        long now;
+
+        while (!mSubscriptions.isEmpty() && (now = now()) < end) {
+            checkInterfaces(now);
+
+            long deadline = Math.min(Math.min(end, mNextInterfaceCheck),
+                Math.min(nextBatchDeadline(), updateMulticastLock(now)));
+
+            if (mMdns != null) deadline = Math.min(deadline, mMdns.nextResolve());
+
+            int selected = deadline > now ? mSelector.select(deadline - now) : 0;
+
+            if (selected == 0 && deadline > now) {
+                // Waited the whole time without receiving anything (or woken up).
+                mStats.socketTimeouts.incrementAndGet();
+            }
+            else if (selected > 0) {
+                Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    DatagramChannel channel = (DatagramChannel) key.channel();
+                    boolean mdns = key.attachment() instanceof MdnsBrowser;
+                    // Null for the shared channels.
+                    SsdpChannel ssdpChannel = mdns ? null : (SsdpChannel) key.attachment();
+                    boolean ipv6 = ssdpChannel != null ? ssdpChannel.ipv6
+                        : channel == mReceiveChannels[1] || channel == mMdnsChannels[1];
+                    SocketAddress source;
+
+                    while ((source = channel.receive(mReceiveBuffer)) != null) {
+                        InetAddress address = ((InetSocketAddress) source).getAddress();
+
+                        if ((address instanceof Inet6Address) != ipv6) {
+                            // A dual-stack IPv6 socket also receives IPv4 datagrams, which the
+                            // IPv4 channel receives anyway.
+                            mReceiveBuffer.clear();
+                            continue;
+                        }
+
+                        mReceiveBuffer.flip();
+
+                        int length = mReceiveBuffer.remaining();
+                        mReceiveBuffer.get(mPacket, 0, length);
+                        mReceiveBuffer.clear();
+
+                        if (mdns) {
+                            receiveMdns(length, address);
+                            continue;
+                        }
+
+                        long start = System.nanoTime();
+                        SsdpMessage message = SsdpParser.parse(mPacket, length, mHeaders);
+                        mStats.received(length, System.nanoTime() - start);
+
+                        message.source = address;
+                        message.networkInterface = ssdpChannel != null ? ssdpChannel.name
+                            : localInterface(address);
+
+                        result(message);
+                    }
+                }
+            }
+
+            warmStart();
+
+            resolveMdns(now());
+
+            deliverDescribed();
+
+            flush();
+
+            // Listeners might have been added or removed.
+            end = nextSearch();
+        }
+    }
+
+    /**
+     * Parses an mDNS datagram from {@link #mPacket} and hands the service instances, it
+     * resolves, to {@link #result(SsdpMessage)}.
+     *
+     * @param length
+     *            The length of the datagram.
+     * @param source
+     *            The sender.
+     */
+    private void receiveMdns(int length, InetAddress source) {
+        long start = System.nanoTime();
+        DnsMessage message = DnsParser.parse(mPacket, length);
+        mStats.received(length, System.nanoTime() - start);
+        mStats.mdnsReceived.incrementAndGet();
+
+        if (message == null) {
+            mStats.mdnsMalformed.incrementAndGet();
+            return;
+        }
+
+        for (SsdpMessage answer : mMdns.received(message, localInterface(source), now())) {
+            answer.source = answer.source != null ? answer.source : source;
+
+            result(answer);
+        }
+    }
+
+    /**
+     * Asks for the missing records of service instances, which can't be resolved, yet, on every
+     * interface with mDNS, if due.
+     *
+     * @param now
+     *            The current time in milliseconds of a monotonic clock.
+     */
+    private void resolveMdns(long now) {
+        if (mMdns == null || mMdns.nextResolve() > now) return;
+
+        ByteBuffer query = mMdns.resolveQuery(now);
+
+        if (query == null) return;
+
+        for (SsdpChannel channel : mChannels) {
+            if (!channel.joinedMdns()) continue;
+
+            query.rewind();
+
+            try {
+                if (channel.sendMdns(query)) {
+                    mStats.mdnsQueriesSent.incrementAndGet();
+                }
+                else {
+                    mStats.sendErrors.incrementAndGet();
+                }
+            } catch (IOException e) {
+                // Asked again with the next search.
+                mStats.sendErrors.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Acquires the multicast lock, if at least one subscription needs it, and releases it
+     * otherwise. Like a reference count over all subscriptions.
+     *
+     * @param now
+     *            The current time in milliseconds of a monotonic clock.
+     * @return the time, when the next search window of a subscription in power-save mode ends
+     *         and the lock might need to be released, or {@link Long#MAX_VALUE}.
+     */
+    private long updateMulticastLock(long now) {
+        int holders = 0;
+        long next = Long.MAX_VALUE;
+
+        for (Subscription subscription : mSubscriptions.values()) {
+            if (subscription.needsMulticastLock(now)) holders++;
+
+            long windowEnd = subscription.searchWindowEnd();
+
+            if (windowEnd > now) next = Math.min(next, windowEnd);
+        }
+
+        mLockHolders = holders;
+
+        if (holders > 0 && mHeldLock == null) {
+            mHeldLock = mMulticastLock;
+
+            if (mHeldLock != null) mHeldLock.acquire();
+        }
+        else if (holders < 1) {
+            releaseMulticastLock();
+        }
+
+        return next;
+    }
+
+    private void releaseMulticastLock() {
+        if (mHeldLock != null) {
+            mHeldLock.release();
+            mHeldLock = null;
+        }
+    }
+
+    /**
+     * @return the time, when the next M-SEARCH request or mDNS query is due or, if no
+     *         subscription sends requests, when the next cache purge is due.
+     */
+    private long nextSearch() {
+        long next = Long.MAX_VALUE;
+
+        for (Subscription subscription : mSubscriptions.values()) {
+            if (!subscription.broadcastMsearch) continue;
+
+            if (!subscription.requests().isEmpty()) {
+                next = Math.min(next, subscription.scheduler.next());
+            }
+
+            if (!subscription.dnsServiceTypes.isEmpty()) {
+                next = Math.min(next, subscription.mdnsScheduler.next());
+            }
+        }
+
+        return next < Long.MAX_VALUE ? next : Math.max(mNextPurge, now() + 1);
+    }
+
+    /**
+     * @return the time, when the next batch needs to be sent, or {@link Long#MAX_VALUE}, if
+     *         there is none.
+     */
+    private long nextBatchDeadline() {
+        long next = Long.MAX_VALUE;
+
+        for (Subscription subscription : mSubscriptions.values()) {
+            next = Math.min(next, subscription.batchDeadline());
+        }
+
+        return next;
+    }
+
+    /**
+     * Wakes up the background thread, if it's waiting for answers, so it notices immediately,
+     * that listeners were added or removed.
+     */
+    private void wakeup() {
+        Selector selector = mSelector;
+
+        if (selector != null) selector.wakeup();
+    }
+
+    /**
+     *  Checks, if the {@link SsdpChannel}s are already closed, and if not, does close them and
+     *  their {@link Selector}.
+     */
+    private void close() {
+        searchSent(-1);
+
+        releaseMulticastLock();
+        mLockHolders = 0;
+
+        for (SsdpChannel channel : mChannels) {
+            channel.close();
+        }
+
+        mChannels.clear();
+        mChannelNames = new String[0];
+
+        close(mReceiveChannels[0]);
+        close(mReceiveChannels[1]);
+        mReceiveChannels[0] = null;
+        mReceiveChannels[1] = null;
+
+        close(mMdnsChannels[0]);
+        close(mMdnsChannels[1]);
+        mMdnsChannels[0] = null;
+        mMdnsChannels[1] = null;
+
+        close(mSelector);
+        mSelector = null;
+    }
+
+    /**
+     * An answer with its description, waiting for delivery.
+     */
+    private static class Described {
+
+        final Subscription subscription;
+        final JSONObject answer;
+
+        Described(Subscription subscription, JSONObject answer) {
+            this.subscription = subscription;
+            this.answer = answer;
+        }
+    }
+
+    /**
+     * @param closeable
+     *            Will be closed, if not null. Errors are ignored.
+     */
+    static void close(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Ignore, closing anyway.
+            }
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com.scott.plugin;
+
+import java.util.Locale;
+
+/**
+ * <p>
+ * Minimal level-gated logging facade for the SSDP core, so it stays free of Android
+ * dependencies. {@link ServiceDiscovery} plugs in logcat, everything else logs to stderr.
+ * </p>
+ * <p>
+ * Messages are format strings, which are only formatted, if their level is enabled. Callers on
+ * the hot path should additionally check {@link #isLoggable(int)} before computing expensive
+ * arguments, like serializing an answer.
+ * </p>
+ * <p>
+ * The levels have the same values as the priorities of android.util.Log.
+ * </p>
+ */
+final class SsdpLog {
+
+    static final int VERBOSE = 2;
+    static final int DEBUG = 3;
+    static final int INFO = 4;
+    static final int WARN = 5;
+    static final int ERROR = 6;
+    static final int NONE = Integer.MAX_VALUE;
+
+    static final String TAG = "ServiceDiscovery";
+
+    /**
+     * Writes log messages somewhere.
+     */
+    interface Sink {
+
+        /**
+         * @param level
+         *            One of {@link #VERBOSE} to {@link #ERROR}.
+         * @param tag
+         *            Identifies the source of the message.
+         * @param message
+         *            The formatted message.
+         * @param throwable
+         *            An exception to log with the message. May be null.
+         */
+        void println(int level, String tag, String message, Throwable throwable);
+    }
+
+    private static final Sink STDERR = new Sink() {
+        @Override
+        public void println(int level, String tag, String message, Throwable throwable) {
+            System.err.println(tag + ": " + message);
+
+            if (throwable != null) throwable.printStackTrace();
+        }
+    };
+
+    private static volatile int sLevel = WARN;
+    private static volatile Sink sSink = STDERR;
+
+    private SsdpLog() {
+    }
+
+    /**
+     * @param level
+     *            The minimum level to log. {@link #NONE} disables logging completely.
+     */
+    static void setLevel(int level) {
+        sLevel = level;
+    }
+
+    /**
+     * @param sink
+     *            Receives all enabled messages. Null restores logging to stderr.
+     */
+    static void setSink(Sink sink) {
+        sSink = sink != null ? sink : STDERR;
+    }
+
+    /**
+     * @param level
+     *            A level name like "DEBUG" or "NONE", case-insensitive.
+     * @param fallback
+     *            Returned, if the name is unknown or null.
+     * @return the level.
+     */
+    static int parseLevel(String level, int fallback) {
+        if (level == null) return fallback;
+
+        switch (level.trim().toUpperCase(Locale.US)) {
+            case "VERBOSE":
+                return VERBOSE;
+            case "DEBUG":
+                return DEBUG;
+            case "INFO":
+                return INFO;
+            case "WARN":
+                return WARN;
+            case "ERROR":
+                return ERROR;
+            case "NONE":
+                return NONE;
+            default:
+                return fallback;
+        }
+    }
+
+    /**
+     * @param level
+     *            A level.
+     * @return true, if messages of that level will be logged.
+     */
+    static boolean isLoggable(int level) {
+        return level >= sLevel;
+    }
+
+    /**
+     * Logs a message, if its level is enabled. Formatting only happens in that case.
+     *
+     * @param level
+     *            The level of the message.
+     * @param tag
+     *            Identifies the source of the message.
+     * @param format
+     *            A format string for {@link String#format(Locale, String, Object...)}.
+     * @param args
+     *            The arguments for the format string.
+     */
+    static void log(int level, String tag, String format, Object... args) {
+        if (level < sLevel) return;
+
+        sSink.println(level, tag, args.length > 0 ? String.format(Locale.US, format, args)
+            : format, null);
+    }
+
+    /**
+     * Logs an exception with a message, if {@link #WARN} is enabled.
+     *
+     * @param tag
+     *            Identifies the source of the message.
+     * @param message
+     *            The message.
+     * @param throwable
+     *            The exception.
+     */
+    static void w(String tag, String message, Throwable throwable) {
+        if (WARN < sLevel) return;
+
+        sSink.println(WARN, tag, message, throwable);
+    }
+}
@@ -0,0 +1,209 @@
+package com.scott.plugin;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+
+/**
+ * <p>
+ * A parsed SSDP datagram: The type of its start line, its headers as received and direct
+ * fields for the headers the engine needs to filter and deduplicate, so these decisions don't
+ * need any map lookups or JSON.
+ * </p>
+ * <p>
+ * Header names are kept as received, because listeners without normalizeHeaders get them
+ * unmodified. The names of well-known headers are interned by {@link SsdpParser}, so the common
+ * spellings don't allocate. The JSON forms are only built for answers, which are actually
+ * delivered.
+ * </p>
+ */
+class SsdpMessage {
+
+    /**
+     * One of {@link SsdpParser#TYPE_MSEARCH}, {@link SsdpParser#TYPE_NOTIFY},
+     * {@link SsdpParser#TYPE_RESPONSE} or {@link SsdpParser#TYPE_UNKNOWN}. Null, if the datagram
+     * had no start line.
+     */
+    String type;
+
+    /**
+     * The sender of the datagram. May be null.
+     */
+    InetAddress source;
+
+    /**
+     * The name of the network interface, the datagram was received on. May be null.
+     */
+    String networkInterface;
+
+    /**
+     * True, if this is no SSDP datagram, but a DNS-SD service instance resolved by the
+     * {@link MdnsBrowser}.
+     */
+    boolean mdns;
+
+    String usn;
+    String nt;
+    String nts;
+    String st;
+    String location;
+    String cacheControl;
+    String bootId;
+    String configId;
+
+    private String[] mKeys = new String[12];
+    private String[] mValues = new String[12];
+    private int mSize;
+
+    /**
+     * Adds a header and sets the matching direct field.
+     *
+     * @param key
+     *            The header name as received.
+     * @param value
+     *            The header value.
+     */
+    void add(String key, String value) {
+        if (mSize == mKeys.length) {
+            mKeys = Arrays.copyOf(mKeys, mSize * 2);
+            mValues = Arrays.copyOf(mValues, mSize * 2);
+        }
+
+        mKeys[mSize] = key;
+        mValues[mSize++] = value;
+
+        setField(key, value);
+    }
+
+    /**
+     * Sets the direct field, if the header is one of {@link SsdpParser#HOT_HEADERS}.
+     *
+     * @param key
+     *            A header name.
+     * @param value
+     *            Its value.
+     */
+    private void setField(String key, String value) {
+        switch (key.length()) {
+            case 2:
+                if ("ST".equalsIgnoreCase(key)) st = value;
+                else if ("NT".equalsIgnoreCase(key)) nt = value;
+                break;
+
+            case 3:
+                if ("USN".equalsIgnoreCase(key)) usn = value;
+                else if ("NTS".equalsIgnoreCase(key)) nts = value;
+                break;
+
+            case 8:
+                if ("LOCATION".equalsIgnoreCase(key)) location = value;
+                break;
+
+            case 13:
+                if ("CACHE-CONTROL".equalsIgnoreCase(key)) cacheControl = value;
+                break;
+
+            case 15:
+                if ("BOOTID.UPNP.ORG".equalsIgnoreCase(key)) bootId = value;
+                break;
+
+            case 17:
+                if ("CONFIGID.UPNP.ORG".equalsIgnoreCase(key)) configId = value;
+                break;
+
+            default:
+                break;
+        }
+    }
+
+    /**
+     * @return the number of headers.
+     */
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * @param index
+     *            0 to {@link #size()} - 1.
+     * @return the name of the header at that index as received.
+     */
+    String key(int index) {
+        return mKeys[index];
+    }
+
+    /**
+     * @param index
+     *            0 to {@link #size()} - 1.
+     * @return the value of the header at that index.
+     */
+    String value(int index) {
+        return mValues[index];
+    }
+
+    /**
+     * @param name
+     *            A header name, case-insensitive.
+     * @return the value of the last header with that name or null.
+     */
+    String header(String name) {
+        for (int i = mSize - 1; i >= 0; i--) {
+            if (mKeys[i].equalsIgnoreCase(name)) return mValues[i];
+        }
+
+        return null;
+    }
+
+    /**
+     * @return the headers as received.
+     */
+    JSONObject toJSON() {
+        return toJSON(false);
+    }
+
+    /**
+     * @param normalizeHeaders
+     *            Capitalize the header names.
+     * @return the headers.
+     */
+    JSONObject toJSON(boolean normalizeHeaders) {
+        return toJSON(normalizeHeaders, null);
+    }
+
+    /**
+     * @param normalizeHeaders
+     *            Capitalize the header names.
+     * @param headers
+     *            Only these headers are included. Null includes all.
+     * @return the headers plus the receiving network interface as "interface", if known, and
+     *         <code>"protocol": "mdns"</code> for DNS-SD service instances.
+     */
+    JSONObject toJSON(boolean normalizeHeaders, HeaderSet headers) {
+        JSONObject json = new JSONObject();
+
+        try {
+            if (networkInterface != null) json.put("interface", networkInterface);
+
+            if (mdns) json.put("protocol", "mdns");
+        } catch (JSONException e) {
+            // This should not happen.
+            e.printStackTrace();
+        }
+
+        for (int i = 0; i < mSize; i++) {
+            if (headers != null && !headers.contains(mKeys[i])) continue;
+
+            try {
+                json.put(normalizeHeaders ? SsdpParser.capitalize(mKeys[i]) : mKeys[i],
+                    mValues[i]);
+            } catch (JSONException e) {
+                // This should not happen.
+                e.printStackTrace();
+            }
+        }
+
+        return json;
+    }
+}
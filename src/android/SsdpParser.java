@@ -0,0 +1,306 @@
+package com.scott.plugin;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Parses SSDP datagrams into {@link SsdpMessage}s. Pure Java, no Android dependencies.
+ */
+class SsdpParser {
+
+    static final String TYPE_MSEARCH = "M-SEARCH";
+    static final String TYPE_NOTIFY = "NOTIFY";
+    static final String TYPE_RESPONSE = "RESPONSE";
+    static final String TYPE_UNKNOWN = "UNKNOWN";
+
+    private static final byte[] MSEARCH = TYPE_MSEARCH.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] NOTIFY = TYPE_NOTIFY.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HTTP = "HTTP/".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] STATUS_OK = "200".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Headers with direct fields in {@link SsdpMessage}. They are always parsed, because the
+     * engine needs them for routing.
+     */
+    static final String[] HOT_HEADERS = {
+        "USN", "NT", "NTS", "ST", "LOCATION", "CACHE-CONTROL", "BOOTID.UPNP.ORG",
+        "CONFIGID.UPNP.ORG",
+    };
+
+    /**
+     * Headers defined by the UPnP Device Architecture and other common ones. Their upper-case
+     * and capitalized spellings are interned.
+     */
+    private static final String[] KNOWN_HEADERS = {
+        "HOST", "CACHE-CONTROL", "LOCATION", "SERVER", "EXT", "ST", "USN", "NT", "NTS", "MAN",
+        "MX", "DATE", "OPT", "01-NLS", "USER-AGENT", "CONTENT-LENGTH", "BOOTID.UPNP.ORG",
+        "NEXTBOOTID.UPNP.ORG", "CONFIGID.UPNP.ORG", "SEARCHPORT.UPNP.ORG",
+        "SECURELOCATION.UPNP.ORG",
+    };
+
+    /**
+     * Interned header names by length.
+     */
+    private static final String[][] INTERNED = new String[32][];
+
+    /**
+     * Capitalized forms of the interned header names.
+     */
+    private static final Map<String, String> CAPITALIZED = new HashMap<String, String>();
+
+    static {
+        List<String> names = new ArrayList<String>();
+
+        for (String name : KNOWN_HEADERS) {
+            names.add(name);
+            names.add(capitalize(name));
+        }
+
+        for (int length = 0; length < INTERNED.length; length++) {
+            List<String> interned = new ArrayList<String>();
+
+            for (String name : names) {
+                if (name.length() == length && !interned.contains(name)) interned.add(name);
+            }
+
+            INTERNED[length] = interned.toArray(new String[interned.size()]);
+        }
+
+        for (String name : names) {
+            CAPITALIZED.put(name, capitalize(name));
+        }
+    }
+
+    private SsdpParser() {
+    }
+
+    /**
+     * <p>
+     * Breaks down the HTTP start line and headers contained in a received datagram.
+     * </p>
+     * <p>
+     * See <a href="https://de.wikipedia.org/wiki/Simple_Service_Discovery_Protocol"
+     * >Wikipedia: Simple Service Discovery Protocol</a> for an example of an SSDP response.
+     * </p>
+     * <p>
+     * Works in a single pass directly on the bytes: Lines are found by scanning for CR/LF, the
+     * header name is split off at the first colon, and the start line is classified by comparing
+     * bytes, so only header names and values are ever decoded into strings.
+     * </p>
+     * <p>
+     * Header names are kept as received. Well-known ones are interned, see
+     * {@link #intern(byte[], int, int)}.
+     * </p>
+     * @param data
+     *            A byte buffer.
+     * @param length
+     *            The number of valid bytes in the buffer.
+     * @return the type of the start line and all headers.
+     */
+    static SsdpMessage parse(byte[] data, int length) {
+        return parse(data, length, null);
+    }
+
+    /**
+     * Like {@link #parse(byte[], int)}, but only keeps the given headers. The names and values
+     * of all others are skipped without decoding them.
+     *
+     * @param data
+     *            A byte buffer.
+     * @param length
+     *            The number of valid bytes in the buffer.
+     * @param headers
+     *            The headers to keep. Null keeps all of them.
+     * @return the type of the start line and the kept headers.
+     */
+    static SsdpMessage parse(byte[] data, int length, HeaderSet headers) {
+        SsdpMessage message = new SsdpMessage();
+
+        int pos = 0;
+
+        while (pos < length) {
+            int end = pos;
+
+            while (end < length && data[end] != '\r' && data[end] != '\n') end++;
+
+            int next = end;
+            if (next < length && data[next] == '\r') next++;
+            if (next < length && data[next] == '\n') next++;
+
+            int start = skipWhitespace(data, pos, end);
+            int colon = start;
+
+            while (colon < end && data[colon] != ':') colon++;
+
+            if (colon == end) {
+                if (start < end) message.type = classify(data, start, end);
+            }
+            else {
+                int keyEnd = trimEnd(data, start, colon);
+
+                if (headers != null && !headers.contains(data, start, keyEnd)) {
+                    pos = next;
+                    continue;
+                }
+
+                String key = intern(data, start, keyEnd);
+
+                int valueStart = skipWhitespace(data, colon + 1, end);
+
+                String value = new String(data, valueStart,
+                    trimEnd(data, valueStart, end) - valueStart, StandardCharsets.UTF_8);
+
+                message.add(key, value);
+            }
+
+            pos = next;
+        }
+
+        return message;
+    }
+
+    /**
+     * @param data
+     *            A byte buffer.
+     * @param start
+     *            The offset of the header name.
+     * @param end
+     *            The offset after the header name.
+     * @return the interned string, if the header name is spelled exactly like a well-known one,
+     *         otherwise a new string.
+     */
+    private static String intern(byte[] data, int start, int end) {
+        int length = end - start;
+
+        if (length < INTERNED.length) {
+            for (String name : INTERNED[length]) {
+                if (equals(data, start, name)) return name;
+            }
+        }
+
+        return new String(data, start, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return true, if the bytes starting at the given offset are exactly the ASCII name.
+     */
+    private static boolean equals(byte[] data, int start, String name) {
+        for (int i = 0; i < name.length(); i++) {
+            if (data[start + i] != name.charAt(i)) return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Classifies an HTTP start line.
+     *
+     * @param data
+     *            A byte buffer.
+     * @param start
+     *            The offset of the first non-whitespace byte of the line.
+     * @param end
+     *            The offset of the line end.
+     * @return one of {@link #TYPE_MSEARCH}, {@link #TYPE_NOTIFY}, {@link #TYPE_RESPONSE} or
+     *         {@link #TYPE_UNKNOWN}.
+     */
+    private static String classify(byte[] data, int start, int end) {
+        if (startsWithIgnoreCase(data, start, end, MSEARCH)) return TYPE_MSEARCH;
+
+        if (startsWithIgnoreCase(data, start, end, NOTIFY)) return TYPE_NOTIFY;
+
+        if (startsWithIgnoreCase(data, start, end, HTTP)) {
+            // "HTTP/1.1 200 OK": Skip the version and compare the status code.
+            int status = start + HTTP.length;
+
+            while (status < end && data[status] != ' ') status++;
+
+            status = skipWhitespace(data, status, end);
+
+            if (startsWithIgnoreCase(data, status, end, STATUS_OK)) return TYPE_RESPONSE;
+        }
+
+        return TYPE_UNKNOWN;
+    }
+
+    /**
+     * @param data
+     *            A byte buffer.
+     * @param start
+     *            The offset where to start the comparison.
+     * @param end
+     *            The offset until where bytes may be compared.
+     * @param prefix
+     *            An upper-case ASCII prefix.
+     * @return true, if the bytes starting at the given offset match the prefix, ignoring ASCII
+     *         case.
+     */
+    private static boolean startsWithIgnoreCase(byte[] data, int start, int end, byte[] prefix) {
+        if (end - start < prefix.length) return false;
+
+        for (int i = 0; i < prefix.length; i++) {
+            int b = data[start + i];
+
+            if (b >= 'a' && b <= 'z') b -= 'a' - 'A';
+
+            if (b != prefix[i]) return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * @return the offset of the first byte in [start, end), which is not a space or tab, or end.
+     */
+    private static int skipWhitespace(byte[] data, int start, int end) {
+        while (start < end && (data[start] == ' ' || data[start] == '\t')) start++;
+
+        return start;
+    }
+
+    /**
+     * @return the offset after the last byte in [start, end), which is not a space or tab, or
+     *         start.
+     */
+    private static int trimEnd(byte[] data, int start, int end) {
+        while (end > start && (data[end - 1] == ' ' || data[end - 1] == '\t')) end--;
+
+        return end;
+    }
+
+    /**
+     * Capitalize HTTP header properly.
+     *
+     * @param string
+     *            A HTTP header.
+     * @return a capitalized HTTP header.
+     */
+    static String capitalize(String string) {
+        String capitalized = CAPITALIZED.get(string);
+
+        if (capitalized != null) return capitalized;
+
+        String[] parts = string.split("-");
+
+        for (int i = 0; i < parts.length; i++) {
+            if (parts[i].length() > 0) {
+                parts[i] = parts[i].substring(0, 1).toUpperCase(Locale.US)
+                    + parts[i].substring(1).toLowerCase(Locale.US);
+            }
+        }
+
+        StringBuilder builder = new StringBuilder(string.length());
+
+        for (int i = 0; i < parts.length; i++) {
+            if (i > 0) builder.append('-');
+
+            builder.append(parts[i]);
+        }
+
+        return builder.toString();
+    }
+}
@@ -0,0 +1,381 @@
+package com.scott.plugin;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * <p>
+ * Checks, if known devices are still alive, with unicast M-SEARCH requests as defined by the
+ * UPnP Device Architecture 2.0: The request is sent directly to the device with its address in
+ * the HOST header, and only that device answers.
+ * </p>
+ * <p>
+ * All probes are sent back-to-back from one channel per address family and the responses are
+ * collected with a {@link Selector}, so probing many devices takes about as long as probing the
+ * slowest one. A channel is only opened for a family, which is probed. If that fails, the devices
+ * of that family get an error, the others are probed anyway. Probes, which weren't answered after
+ * half the timeout, are sent once more, since UDP datagrams get lost. Responses don't tell, which
+ * probe they answer, so the round-trip time is measured from the first probe sent to the device.
+ * It's too long, if only the second one got through, but never too short.
+ * </p>
+ * <p>
+ * Independent of the {@link SsdpEngine}'s background thread: {@link #probe(int)} blocks the
+ * calling thread until all devices answered or the timeout is reached.
+ * </p>
+ */
+class SsdpProber {
+
+    static final int DEFAULT_TIMEOUT = 2000;
+    static final String DEFAULT_SERVICE_TYPE = "upnp:rootdevice";
+
+    private static final int RECEIVE_PACKET_SIZE = 9216;
+
+    /**
+     * The result of probing one device.
+     */
+    static class Result {
+
+        /**
+         * The target as given.
+         */
+        final String target;
+
+        InetSocketAddress address;
+        String error;
+        boolean alive;
+
+        /**
+         * The round-trip time in nanoseconds, if alive.
+         */
+        long rtt = -1;
+
+        /**
+         * The response of the device, if alive.
+         */
+        SsdpMessage answer;
+
+        private long mSent;
+        private int mSends;
+        private ByteBuffer mRequest;
+
+        Result(String target) {
+            this.target = target;
+        }
+
+        /**
+         * @param normalizeHeaders
+         *            Capitalize the header names of the answer.
+         * @return {target, alive, rtt (milliseconds), answer} or {target, alive, error}.
+         */
+        JSONObject toJSON(boolean normalizeHeaders) {
+            JSONObject json = new JSONObject();
+
+            try {
+                json.put("target", target);
+                json.put("alive", alive);
+
+                if (alive) {
+                    json.put("rtt", rtt / 1000 / 1000.0);
+                    json.put("answer", answer.toJSON(normalizeHeaders));
+                }
+                else if (error != null) {
+                    json.put("error", error);
+                }
+            } catch (JSONException e) {
+                // This should not happen.
+                e.printStackTrace();
+            }
+
+            return json;
+        }
+    }
+
+    private final List<Result> mResults = new ArrayList<Result>();
+    private final String mServiceType;
+    private final String mUserAgent;
+    private final SsdpStats mStats;
+
+    /**
+     * @param targets
+     *            The devices to probe as IP address literals with optional port, e.g.
+     *            "192.168.1.23", "192.168.1.23:1900" or "[fe80::1]:1900". Default port is
+     *            {@link SsdpEngine#PORT}.
+     * @param serviceType
+     *            The ST of the requests. Null for {@link #DEFAULT_SERVICE_TYPE}.
+     * @param userAgent
+     *            Sent as USER-AGENT header. May be null.
+     * @param stats
+     *            Receives the number of probes and the round-trip times. May be null.
+     */
+    SsdpProber(List<String> targets, String serviceType, String userAgent, SsdpStats stats) {
+        mServiceType = serviceType != null ? serviceType : DEFAULT_SERVICE_TYPE;
+        mUserAgent = userAgent;
+        mStats = stats;
+
+        for (String target : targets) {
+            Result result = new Result(target);
+
+            try {
+                result.address = parse(target);
+            } catch (UnknownHostException e) {
+                result.error = "Invalid address: " + target;
+            }
+
+            mResults.add(result);
+        }
+    }
+
+    /**
+     * @param target
+     *            An IP address literal with optional port.
+     * @return the socket address.
+     * @throws UnknownHostException if the target is no IP address literal or the port is
+     *                              invalid.
+     */
+    static InetSocketAddress parse(String target) throws UnknownHostException {
+        String address = target.trim();
+        int port = SsdpEngine.PORT;
+        int colon = address.lastIndexOf(':');
+
+        try {
+            if (address.startsWith("[")) {
+                int end = address.indexOf(']');
+
+                if (end < 0) throw new UnknownHostException(target);
+
+                if (end + 1 < address.length()) {
+                    if (address.charAt(end + 1) != ':') throw new UnknownHostException(target);
+
+                    port = Integer.parseInt(address.substring(end + 2));
+                }
+
+                address = address.substring(1, end);
+            }
+            else if (colon > 0 && address.indexOf(':') == colon) {
+                port = Integer.parseInt(address.substring(colon + 1));
+                address = address.substring(0, colon);
+            }
+        } catch (NumberFormatException e) {
+            throw new UnknownHostException(target);
+        }
+
+        // Only accept literals, InetAddress would happily do a DNS lookup otherwise.
+        if (!address.matches("\\d{1,3}(\\.\\d{1,3}){3}") && !address.contains(":")) {
+            throw new UnknownHostException(target);
+        }
+
+        if (port < 1 || port > 65535) throw new UnknownHostException(target);
+
+        return new InetSocketAddress(InetAddress.getByName(address), port);
+    }
+
+    /**
+     * Sends the probes and waits for the responses.
+     *
+     * @param timeout
+     *            How long to wait for responses in milliseconds.
+     * @return the results in the order of the targets.
+     * @throws IOException if the selector can't be opened.
+     */
+    List<Result> probe(int timeout) throws IOException {
+        Selector selector = Selector.open();
+        DatagramChannel[] channels = new DatagramChannel[2];
+        String[] errors = new String[2];
+
+        try {
+            for (Result result : mResults) {
+                if (result.address == null) continue;
+
+                boolean ipv6 = result.address.getAddress() instanceof Inet6Address;
+                int index = ipv6 ? 1 : 0;
+
+                if (channels[index] == null && errors[index] == null) {
+                    try {
+                        channels[index] = open(selector, ipv6);
+                    } catch (IOException e) {
+                        // E.g. no IPv6 on this device. The other family may work.
+                        errors[index] = "Can't open channel: " + e.getMessage();
+                    }
+                }
+
+                if (channels[index] == null) {
+                    result.error = errors[index];
+                    continue;
+                }
+
+                result.mRequest = SsdpEngine.request(SsdpEngine.host(
+                    result.address.getAddress().getHostAddress(), result.address.getPort()),
+                    mServiceType, -1, mUserAgent);
+            }
+
+            long start = System.nanoTime();
+            long deadline = start + timeout * 1000000L;
+
+            send(channels);
+
+            boolean retried = false;
+            long retry = start + timeout * 500000L;
+            ByteBuffer buffer = ByteBuffer.allocate(RECEIVE_PACKET_SIZE);
+            long now;
+
+            while (pending() > 0 && (now = System.nanoTime()) < deadline) {
+                if (!retried && now >= retry) {
+                    retried = true;
+                    send(channels);
+                }
+
+                long wait = (retried ? deadline : retry) - now;
+
+                if (selector.select(Math.max(1, wait / 1000000)) < 1) continue;
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+                while (keys.hasNext()) {
+                    DatagramChannel channel = (DatagramChannel) keys.next().channel();
+                    keys.remove();
+
+                    SocketAddress source;
+
+                    while ((source = channel.receive(buffer)) != null) {
+                        long received = System.nanoTime();
+
+                        buffer.flip();
+                        received(((InetSocketAddress) source).getAddress(), buffer, received);
+                        buffer.clear();
+                    }
+                }
+            }
+        } finally {
+            SsdpEngine.close(selector);
+            SsdpEngine.close(channels[0]);
+            SsdpEngine.close(channels[1]);
+        }
+
+        for (Result result : mResults) {
+            if (result.address != null && !result.alive && result.error == null) {
+                result.error = "Timeout";
+            }
+        }
+
+        return mResults;
+    }
+
+    /**
+     * @param selector
+     *            The selector to register the channel with.
+     * @param ipv6
+     *            Open an IPv6 channel instead of an IPv4 one.
+     * @return a non-blocking channel bound to an ephemeral port.
+     * @throws IOException if the channel can't be opened.
+     */
+    private static DatagramChannel open(Selector selector, boolean ipv6) throws IOException {
+        DatagramChannel channel;
+
+        try {
+            channel = DatagramChannel.open(SsdpChannel.family(ipv6));
+        } catch (UnsupportedOperationException e) {
+            // The family isn't available at all.
+            throw new IOException(e.getMessage(), e);
+        }
+
+        try {
+            channel.bind(null);
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ);
+        } catch (IOException e) {
+            SsdpEngine.close(channel);
+            throw e;
+        }
+
+        return channel;
+    }
+
+    /**
+     * Sends the probes to all devices, which didn't answer, yet.
+     */
+    private void send(DatagramChannel[] channels) {
+        for (Result result : mResults) {
+            if (result.mRequest == null || result.alive) continue;
+
+            DatagramChannel channel =
+                channels[result.address.getAddress() instanceof Inet6Address ? 1 : 0];
+
+            result.mRequest.rewind();
+
+            try {
+                long sent = System.nanoTime();
+
+                if (channel.send(result.mRequest, result.address) > 0) {
+                    if (result.mSends++ == 0) result.mSent = sent;
+
+                    if (mStats != null) mStats.probesSent.incrementAndGet();
+                }
+                else if (mStats != null) {
+                    mStats.sendErrors.incrementAndGet();
+                }
+            } catch (IOException e) {
+                // E.g. no route to the device. Maybe the retry works.
+                result.error = e.getMessage();
+
+                if (mStats != null) mStats.sendErrors.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Matches a response to the probes of the device, which sent it. Devices may answer from
+     * another port than the one probed, so only the address is compared. A device, which was
+     * given more than once, answers all its probes.
+     */
+    private void received(InetAddress source, ByteBuffer buffer, long received) {
+        byte[] data = new byte[buffer.remaining()];
+        buffer.get(data);
+
+        SsdpMessage answer = SsdpParser.parse(data, data.length);
+
+        if (!SsdpParser.TYPE_RESPONSE.equals(answer.type)) return;
+
+        for (Result result : mResults) {
+            if (result.alive || result.address == null
+                || !result.address.getAddress().equals(source)) {
+
+                continue;
+            }
+
+            result.alive = true;
+            result.error = null;
+            result.rtt = received - result.mSent;
+            result.answer = answer;
+            result.answer.source = source;
+
+            if (mStats != null) {
+                mStats.probesAnswered.incrementAndGet();
+                mStats.probeRtt.record(result.rtt / 1000);
+            }
+        }
+    }
+
+    private int pending() {
+        int pending = 0;
+
+        for (Result result : mResults) {
+            if (result.mRequest != null && !result.alive) pending++;
+        }
+
+        return pending;
+    }
+}
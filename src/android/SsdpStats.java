@@ -0,0 +1,138 @@
+package com.scott.plugin;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * Counters and histograms of the {@link SsdpEngine}: What was received, how long parsing took,
+ * how many answers were suppressed as duplicates and how fast devices respond to M-SEARCH
+ * requests.
+ * </p>
+ * <p>
+ * Written by the background thread only, but all values are atomics, so they can be read from
+ * any thread at any time without locking the receive path.
+ * </p>
+ */
+class SsdpStats {
+
+    final AtomicLong packetsReceived = new AtomicLong();
+    final AtomicLong bytesReceived = new AtomicLong();
+    final AtomicLong msearchReceived = new AtomicLong();
+    final AtomicLong notifyReceived = new AtomicLong();
+    final AtomicLong responseReceived = new AtomicLong();
+    final AtomicLong unknownReceived = new AtomicLong();
+    final AtomicLong duplicatesSuppressed = new AtomicLong();
+    final AtomicLong filteredOut = new AtomicLong();
+    final AtomicLong sendErrors = new AtomicLong();
+    final AtomicLong socketTimeouts = new AtomicLong();
+    final AtomicLong descriptionsFetched = new AtomicLong();
+    final AtomicLong descriptionCacheHits = new AtomicLong();
+    final AtomicLong descriptionErrors = new AtomicLong();
+    final AtomicLong probesSent = new AtomicLong();
+    final AtomicLong probesAnswered = new AtomicLong();
+    final AtomicLong mdnsReceived = new AtomicLong();
+    final AtomicLong mdnsMalformed = new AtomicLong();
+    final AtomicLong mdnsQueriesSent = new AtomicLong();
+
+    /**
+     * Records sent with mDNS queries as known answers, which responders don't need to repeat.
+     */
+    final AtomicLong mdnsKnownAnswers = new AtomicLong();
+
+    /**
+     * Time to parse one datagram in nanoseconds.
+     */
+    final Histogram parseTime = new Histogram();
+
+    /**
+     * Delay between sending M-SEARCH requests and the first response in milliseconds.
+     */
+    final Histogram firstResponseDelay = new Histogram();
+
+    /**
+     * Delay between sending M-SEARCH requests and the last response before the next requests
+     * in milliseconds.
+     */
+    final Histogram lastResponseDelay = new Histogram();
+
+    /**
+     * Round-trip time of unicast M-SEARCH probes in microseconds.
+     */
+    final Histogram probeRtt = new Histogram();
+
+    /**
+     * @param bytes
+     *            The size of a received datagram.
+     * @param parseTime
+     *            The time it took to parse it in nanoseconds.
+     */
+    void received(int bytes, long parseTime) {
+        packetsReceived.incrementAndGet();
+        bytesReceived.addAndGet(bytes);
+        this.parseTime.record(parseTime);
+    }
+
+    /**
+     * @param type
+     *            The type of a received message as classified by {@link SsdpParser}. May be null.
+     */
+    void type(String type) {
+        if (SsdpParser.TYPE_RESPONSE.equals(type)) {
+            responseReceived.incrementAndGet();
+        }
+        else if (SsdpParser.TYPE_NOTIFY.equals(type)) {
+            notifyReceived.incrementAndGet();
+        }
+        else if (SsdpParser.TYPE_MSEARCH.equals(type)) {
+            msearchReceived.incrementAndGet();
+        }
+        else {
+            unknownReceived.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return all counters and histograms as a dictionary.
+     */
+    JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+
+        try {
+            json.put("packetsReceived", packetsReceived.get());
+            json.put("bytesReceived", bytesReceived.get());
+
+            JSONObject byType = new JSONObject();
+            byType.put(SsdpParser.TYPE_MSEARCH, msearchReceived.get());
+            byType.put(SsdpParser.TYPE_NOTIFY, notifyReceived.get());
+            byType.put(SsdpParser.TYPE_RESPONSE, responseReceived.get());
+            byType.put(SsdpParser.TYPE_UNKNOWN, unknownReceived.get());
+            json.put("packetsByType", byType);
+
+            json.put("duplicatesSuppressed", duplicatesSuppressed.get());
+            json.put("filteredOut", filteredOut.get());
+            json.put("sendErrors", sendErrors.get());
+            json.put("socketTimeouts", socketTimeouts.get());
+            json.put("descriptionsFetched", descriptionsFetched.get());
+            json.put("descriptionCacheHits", descriptionCacheHits.get());
+            json.put("descriptionErrors", descriptionErrors.get());
+            json.put("probesSent", probesSent.get());
+            json.put("probesAnswered", probesAnswered.get());
+            json.put("mdnsReceived", mdnsReceived.get());
+            json.put("mdnsMalformed", mdnsMalformed.get());
+            json.put("mdnsQueriesSent", mdnsQueriesSent.get());
+            json.put("mdnsKnownAnswers", mdnsKnownAnswers.get());
+            json.put("parseTimeNanos", parseTime.toJSON());
+            json.put("firstResponseDelayMillis", firstResponseDelay.toJSON());
+            json.put("lastResponseDelayMillis", lastResponseDelay.toJSON());
+            json.put("probeRttMicros", probeRtt.toJSON());
+        } catch (JSONException e) {
+            // This should not happen.
+            e.printStackTrace();
+        }
+
+        return json;
+    }
+}
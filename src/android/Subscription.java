@@ -0,0 +1,281 @@
+package com.scott.plugin;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <p>
+ * State of one listener of the {@link SsdpEngine}, e.g. one caller of
+ * {@link ServiceDiscovery}'s action=listen.
+ * </p>
+ * <p>
+ * The configuration is set once before the subscription is handed to the background thread.
+ * Everything else is only touched by the background thread.
+ * </p>
+ */
+class Subscription {
+
+    static final String SSDP_ALL = "ssdp:all";
+
+    /**
+     * Added to MX for the search window, because of network latency and slow devices.
+     */
+    static final int SEARCH_WINDOW_MARGIN = 1000;
+
+    final String id;
+    final SsdpEngine.Listener listener;
+    final Set<String> serviceTypes;
+
+    /**
+     * The DNS-SD service types among {@link #serviceTypes}, in canonical form. Browsed with mDNS
+     * instead of M-SEARCH requests.
+     */
+    final Set<String> dnsServiceTypes;
+    final boolean all;
+
+    boolean broadcastMsearch = true;
+    boolean listenForNotifies;
+    boolean normalizeHeaders;
+    int timeout = 4000;
+    int mx = 2;
+    int batchSize = 1;
+    int batchDelay;
+
+    /**
+     * Sent as USER-AGENT header with the M-SEARCH requests. May be null.
+     */
+    String userAgent;
+
+    /**
+     * Drops answers natively, before deduplication. May be null.
+     */
+    MessageFilter filter;
+
+    /**
+     * The headers to deliver. Null delivers all.
+     */
+    HeaderSet headers;
+
+    /**
+     * Deliver answers together with the device description behind their LOCATION.
+     */
+    boolean fetchDescription;
+
+    /**
+     * Only needs the multicast lock during search windows. See
+     * {@link #needsMulticastLock(long)}.
+     */
+    boolean powerSave;
+
+    /**
+     * The names of the network interfaces to search on and receive answers from. Null for all.
+     */
+    Set<String> interfaces;
+
+    /**
+     * Devices already reported to this subscription.
+     */
+    final DeviceCache cache = new DeviceCache(DeviceCache.DEFAULT_CAPACITY);
+
+    /**
+     * Decides, when to send the next M-SEARCH request for this subscription.
+     */
+    SearchScheduler scheduler;
+
+    /**
+     * Decides, when to send the next mDNS query for the DNS-SD service types. Independent of
+     * {@link #scheduler}, since RFC 6762, section 5.2 wants the interval to double from one
+     * second up to an hour.
+     */
+    final SearchScheduler mdnsScheduler = new SearchScheduler(MdnsBrowser.QUERY_INTERVAL,
+        MdnsBrowser.MAX_QUERY_INTERVAL, 0, 0);
+
+    private JSONArray mBatch;
+    private long mBatchDeadline;
+    private long mSearchWindowEnd;
+    private Map<String, ByteBuffer[]> mRequests;
+
+    /**
+     * @param id
+     *            A unique ID, e.g. the listener handle given by the JavaScript side.
+     * @param listener
+     *            Receives the answers.
+     * @param serviceTypes
+     *            The service types to look for. An M-SEARCH request is sent for each SSDP service
+     *            type. DNS-SD service types, like "_googlecast._tcp", are browsed with mDNS, see
+     *            {@link MdnsBrowser#serviceType(String)}.
+     */
+    Subscription(String id, SsdpEngine.Listener listener, Set<String> serviceTypes) {
+        Set<String> types = new LinkedHashSet<String>();
+        Set<String> dnsTypes = new LinkedHashSet<String>();
+
+        for (String serviceType : serviceTypes) {
+            String dnsType = MdnsBrowser.serviceType(serviceType);
+
+            if (dnsType != null) dnsTypes.add(dnsType);
+
+            types.add(dnsType != null ? dnsType : serviceType);
+        }
+
+        this.id = id;
+        this.listener = listener;
+        this.serviceTypes = types;
+        dnsServiceTypes = dnsTypes;
+        all = serviceTypes.contains(SSDP_ALL);
+    }
+
+    /**
+     * @param st
+     *            The service type an answer announces in its ST or NT header. May be null.
+     * @return true, if this subscription is interested in that service type.
+     */
+    boolean matches(String st) {
+        return all || serviceTypes.contains(st);
+    }
+
+    /**
+     * @param message
+     *            An answer.
+     * @return true, if this subscription is interested in it: Responses by their ST, NOTIFY
+     *         messages by their NT, if it listens for them. DNS-SD service instances only, if
+     *         their service type is browsed explicitly, "ssdp:all" doesn't cover them.
+     */
+    boolean matches(SsdpMessage message) {
+        boolean isNotify = SsdpParser.TYPE_NOTIFY.equals(message.type);
+        String st = isNotify ? message.nt : message.st;
+
+        if (isNotify && !listenForNotifies) return false;
+
+        return message.mdns ? dnsServiceTypes.contains(st) : matches(st);
+    }
+
+    /**
+     * Encodes the M-SEARCH requests on first use. The configuration doesn't change afterwards, a
+     * changed listener is a new subscription, so they are never encoded again.
+     *
+     * @return the ready-to-send M-SEARCH requests for each SSDP service type, indexed like
+     *         {@link SsdpEngine#GROUPS}.
+     */
+    Map<String, ByteBuffer[]> requests() {
+        if (mRequests == null) {
+            mRequests = new LinkedHashMap<String, ByteBuffer[]>();
+
+            for (String serviceType : serviceTypes) {
+                if (dnsServiceTypes.contains(serviceType)) continue;
+
+                ByteBuffer[] requests = new ByteBuffer[SsdpEngine.GROUPS.length];
+
+                for (int group = 0; group < requests.length; group++) {
+                    requests[group] = SsdpEngine.request(group, serviceType, mx, userAgent);
+                }
+
+                mRequests.put(serviceType, requests);
+            }
+        }
+
+        return mRequests;
+    }
+
+    /**
+     * Opens a search window, which lasts MX plus {@link #SEARCH_WINDOW_MARGIN}. Call this, after
+     * an M-SEARCH request was sent for this subscription.
+     *
+     * @param now
+     *            The current time in milliseconds of a monotonic clock.
+     */
+    void searchSent(long now) {
+        mSearchWindowEnd = now + mx * 1000L + SEARCH_WINDOW_MARGIN;
+    }
+
+    /**
+     * <p>
+     * Normally, the multicast lock is needed the whole time, since NOTIFY messages can arrive at
+     * any time. In power-save mode, it's only needed during search windows, so Wi-Fi can filter
+     * multicast packets during the backoff between searches. Responses to M-SEARCH requests are
+     * unicast and arrive anyway.
+     * </p>
+     *
+     * @param now
+     *            The current time in milliseconds of a monotonic clock.
+     * @return true, if this subscription needs the multicast lock right now.
+     */
+    boolean needsMulticastLock(long now) {
+        return !powerSave || now < mSearchWindowEnd;
+    }
+
+    /**
+     * @return the time, when the current search window ends, or {@link Long#MAX_VALUE}, if not in
+     *         power-save mode.
+     */
+    long searchWindowEnd() {
+        return powerSave ? mSearchWindowEnd : Long.MAX_VALUE;
+    }
+
+    /**
+     * @param name
+     *            The name of a network interface. May be null, if unknown.
+     * @return true, if this subscription searches on and receives answers from it.
+     */
+    boolean usesInterface(String name) {
+        return interfaces == null || (name != null && interfaces.contains(name));
+    }
+
+    /**
+     * Sends an answer to the listener immediately or, if batching is enabled, adds it to the
+     * current batch and sends that, when it's full.
+     *
+     * @param answer
+     *            A dictionary containing the answer of an SSDP server.
+     * @param now
+     *            The current time in milliseconds of a monotonic clock.
+     */
+    void deliver(JSONObject answer, long now) {
+        if (batchSize < 2 && batchDelay < 1) {
+            listener.onAnswer(answer);
+
+            return;
+        }
+
+        if (mBatch == null) {
+            mBatch = new JSONArray();
+            mBatchDeadline = now + batchDelay;
+        }
+
+        mBatch.put(answer);
+
+        if (mBatch.length() >= batchSize) flush();
+    }
+
+    /**
+     * Sends the current batch of answers to the listener, if there is one.
+     */
+    void flush() {
+        if (mBatch != null) listener.onAnswers(mBatch);
+
+        mBatch = null;
+    }
+
+    /**
+     * @return the time, when the current batch needs to be sent, or {@link Long#MAX_VALUE}, if
+     *         there is none.
+     */
+    long batchDeadline() {
+        return mBatch != null ? mBatchDeadline : Long.MAX_VALUE;
+    }
+
+    /**
+     * Sends an error message to the listener. The subscription stays active.
+     *
+     * @param message
+     *            An error message.
+     */
+    void error(String message) {
+        listener.onError(message);
+    }
+}
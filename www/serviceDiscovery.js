@@ -1,4 +1,6 @@
 /*global cordova, module*/
+var lastListenerId = 0;
+
 module.exports = {
 
     /**
@@ -16,12 +18,18 @@ module.exports = {
      * Errors don't mean, that this plugin will stop listening. You have to explicitly
      * call {@link stop} to achieve this!
      *
-     * Succeeding calls to this method will overwrite the preceding call. In other words: Only the last
-     * caller will receive callbacks!
+     * On Android, multiple listeners can be active at the same time. Each call returns a handle, which you can pass
+     * to {@link stop} to stop just this listener. On iOS, succeeding calls to this method will overwrite the preceding
+     * call. In other words: Only the last caller will receive callbacks!
      *
-     * @param {string} serviceType
+     * @param {string|Array<string>} serviceType
      *            A valid SSDP service type. (e.g. "urn:schemas-upnp-org:service:ContentDirectory:1", "ssdp:all",
-     *            "urn:schemas-upnp-org:service:AVTransport:1")
+     *            "urn:schemas-upnp-org:service:AVTransport:1") On Android, you can also provide an array of service
+     *            types. Then one M-SEARCH per service type is sent and you receive answers matching any of them.
+     *            Android only: DNS-SD service types (e.g. "_googlecast._tcp", "_airplay._tcp", "_ipp._tcp") are
+     *            browsed with mDNS instead. Their answers contain "protocol": "mdns", ST (the service type), USN (the
+     *            instance name), NAME, HOSTNAME, PORT, ADDRESS, CACHE-CONTROL and the TXT entries as "TXT.key".
+     *            "ssdp:all" doesn't include them.
      * @param {listenCallback} successCallback
      *            Callback to receive SSDP server answers.
      * @param {errorCallback} errorCallback
@@ -30,6 +38,7 @@ module.exports = {
      *            Set true, if you want capitalized headers. If false, headers will be passed unmodified (default).
      * @param {number=} readTimeout
      *            Read timeout in milliseconds. (DEFAULT: 4000) Will send a new "M-SEARCH" request after this time.
+     *            Android: At least 1000.
      * @param {boolean=} listenForNotifies
      *            Listen for unsolicited NOTIFY messages. (DEFAULT: false) If this is enabled, you will also receive
      *            NOTIFY messages which match the <b>exact</b> serviceType you provided, or <b>all</b>, if you used
@@ -39,47 +48,153 @@ module.exports = {
      * @param {boolean=} broadcastMsearch
      *            Send M-SEARCH messages and get all responses to it. (DEFAULT: true) This is the original behaviour
      *            of this plugin which can now be switched off to just listen passively.
+     * @param {number=} batchSize
+     *            Maximum number of answers per callback. (DEFAULT: no batching) If this is greater than 1 or a
+     *            batchDelay is given, your successCallback will receive <b>arrays</b> of answers instead of single
+     *            answers. Without a batchSize, a batch is only limited by the batchDelay.
+     * @param {number=} batchDelay
+     *            Maximum delay in milliseconds, an answer is held back to be delivered together with others.
+     *            (DEFAULT: 250, if batching is enabled)
+     * @param {number=} mx
+     *            Maximum wait time in seconds, devices should delay their answers to a M-SEARCH request, 1 to 5.
+     *            (DEFAULT: 2)
+     * @param {number=} maxSearchInterval
+     *            Maximum interval between two M-SEARCH requests in milliseconds. (DEFAULT: readTimeout) If this is
+     *            greater than readTimeout, a few fast requests are sent first, then the interval doubles with every
+     *            request, starting at readTimeout, until it reaches maxSearchInterval. Devices announcing themselves or
+     *            leaving reset the interval to readTimeout, even without listenForNotifies. All intervals get a random
+     *            jitter.
+     * @param {Array<Object>=} filters
+     *            Android only: Rules, which answers need to match all, to be delivered. They are evaluated natively, so
+     *            unwanted answers never cross the bridge. (DEFAULT: none) Each rule is one of
+     *            {header: 'SERVER', equals: '...'}, {header: 'USN', prefix: 'uuid:...'}, {header: 'LOCATION', regex:
+     *            '...'}, {source: '192.168.1.0/24'} or {type: 'NOTIFY'} (or 'RESPONSE'). Header rules can have
+     *            ignoreCase: true, every rule can be inverted with not: true.
+     * @param {Array<string>=} headers
+     *            Android only: Names of the headers answers should contain, case-insensitive. (DEFAULT: all) Other
+     *            headers, like long vendor-specific ones, are skipped natively and never cross the bridge.
+     * @param {boolean=} fetchDescription
+     *            Android only: Fetch the UPnP device description behind the LOCATION header of new answers natively and
+     *            deliver it with the answer as "description": {deviceType, friendlyName, manufacturer, modelName,
+     *            modelNumber, UDN, ..., services: [{serviceType, serviceId, SCPDURL, controlURL, eventSubURL}]}. If
+     *            fetching fails, the answer contains a "descriptionError" instead. (DEFAULT: false)
+     * @param {boolean=} powerSave
+     *            Android only: Hold the Wi-Fi multicast lock only for MX + 1 second after each M-SEARCH instead of the
+     *            whole time, so the radio can filter multicast packets between searches and save battery. NOTIFY
+     *            messages outside of these windows may be missed. Best combined with maxSearchInterval. (DEFAULT: false)
+     * @param {Array<string>=} interfaces
+     *            Android only: Names of the network interfaces to search on, e.g. ['wlan0', 'eth0']. (DEFAULT: all, which
+     *            are up and support multicast) Answers contain the name of the receiving interface as "interface".
+     * @return {string}
+     *            A handle for this listener to be used with {@link stop}.
      */
     listen: function (serviceType, successCallback, errorCallback, normalizeHeaders, readTimeout, listenForNotifies,
-                      broadcastMsearch) {
+                      broadcastMsearch, batchSize, batchDelay, mx, maxSearchInterval, filters, headers,
+                      fetchDescription, powerSave, interfaces) {
         var args = [serviceType];
 
         args.push(typeof broadcastMsearch === 'boolean' ? broadcastMsearch : true);
 
         args.push(typeof listenForNotifies === 'boolean' && listenForNotifies);
 
-        if (typeof normalizeHeaders === 'boolean') {
-            args.push(normalizeHeaders);
-        }
+        args.push(typeof normalizeHeaders === 'boolean' && normalizeHeaders);
+
+        args.push(typeof readTimeout === 'number' ? readTimeout : 4000);
+
+        args.push(typeof batchSize === 'number' ? batchSize : 0);
+
+        args.push(typeof batchDelay === 'number' ? batchDelay : 0);
+
+        var listenerId = 'listener' + (++lastListenerId);
+
+        args.push(listenerId);
+
+        args.push(typeof mx === 'number' ? mx : 2);
+
+        args.push(typeof maxSearchInterval === 'number' ? maxSearchInterval : args[4]);
+
+        args.push(Array.isArray(filters) ? filters : []);
 
-        if (typeof readTimeout === 'number') {
-            args.push(readTimeout);
-        }
+        args.push(Array.isArray(headers) ? headers : []);
+
+        args.push(typeof fetchDescription === 'boolean' && fetchDescription);
+
+        args.push(typeof powerSave === 'boolean' && powerSave);
+
+        args.push(Array.isArray(interfaces) ? interfaces : []);
 
         cordova.exec(successCallback, errorCallback, 'ServiceDiscovery', 'listen', args);
+
+        return listenerId;
     },
 
     /**
      * Stops listening for SSDP server discovery answers.
      *
-     * You will immediately stop receiving updates to your listener. The background thread will be
-     * stopped after read timeout. (4 seconds per default).
+     * You will immediately stop receiving updates to your listener. On Android, the background thread will be
+     * stopped immediately, too, when the last listener was stopped. On iOS, it will be stopped after read timeout. (4 seconds per default).
      *
      * It is safe to call this multiple times and before any call to {@link listen}.
      *
      * @param {stopCallback=} successCallback
      *            Callback to indicate successful execution.
+     * @param {string=} listenerId
+     *            The handle returned by {@link listen} of the listener to stop. (DEFAULT: all listeners)
      */
-    stop: function (successCallback) {
-        cordova.exec(successCallback, null, 'ServiceDiscovery', 'stop', []);
+    stop: function (successCallback, listenerId) {
+        cordova.exec(successCallback, null, 'ServiceDiscovery', 'stop',
+            typeof listenerId === 'string' ? [listenerId] : []);
+    },
+
+    /**
+     * Android only: Get statistics about the received packets and the response times of devices, collected since the
+     * plugin was loaded.
+     *
+     * @param {statsCallback} successCallback
+     *            Callback to receive the statistics.
+     * @param {errorCallback=} errorCallback
+     *            Callback to receive error messages.
+     */
+    getStats: function (successCallback, errorCallback) {
+        cordova.exec(successCallback, errorCallback, 'ServiceDiscovery', 'getStats', []);
+    },
+
+    /**
+     * Android only: Check, if known devices are still alive, with unicast M-SEARCH requests sent directly to them,
+     * instead of multicasting to the whole network. All devices are probed concurrently.
+     *
+     * @param {Array<string>} targets
+     *            IP addresses of the devices with optional port, e.g. '192.168.1.23', '192.168.1.23:1900' or
+     *            '[fe80::1]:1900'. (DEFAULT port: 1900)
+     * @param {probeCallback} successCallback
+     *            Callback to receive the results.
+     * @param {errorCallback=} errorCallback
+     *            Callback to receive error messages.
+     * @param {string=} serviceType
+     *            The service type to search for. (DEFAULT: 'upnp:rootdevice')
+     * @param {number=} timeout
+     *            How long to wait for responses in milliseconds. Unanswered probes are repeated once after half of
+     *            it. (DEFAULT: 2000)
+     * @param {boolean=} normalizeHeaders
+     *            Capitalize the header names of the responses. (DEFAULT: false)
+     */
+    probe: function (targets, successCallback, errorCallback, serviceType, timeout, normalizeHeaders) {
+        cordova.exec(successCallback, errorCallback, 'ServiceDiscovery', 'probe', [
+            targets,
+            typeof serviceType === 'string' ? serviceType : '',
+            typeof timeout === 'number' ? timeout : 2000,
+            typeof normalizeHeaders === 'boolean' && normalizeHeaders
+        ]);
     }
 
     /**
-     * Callback for {@link listen}, containing one SSDP server answer.
+     * Callback for {@link listen}, containing one SSDP server answer or, if batching is enabled, an array of them.
      *
      * @callback listenCallback
-     * @param {Object<string, string>} answer
-     *            A map of a SSDP server answer.
+     * @param {Object<string, string>|Array<Object<string, string>>} answer
+     *            A map of a SSDP server answer or an array of such maps. On Android, devices seen during earlier app
+     *            runs, whose answers didn't expire, yet, are reported right away with "cached": true and reported again
+     *            without it, when they answer live.
      */
 
     /**
@@ -96,4 +211,29 @@ module.exports = {
      *
      * @callback stopCallback
      */
+
+    /**
+     * Callback for {@link getStats}.
+     *
+     * Histograms contain count, mean, p50, p90, p99 and max.
+     *
+     * @callback statsCallback
+     * @param {Object} stats
+     *            packetsReceived, bytesReceived, packetsByType (M-SEARCH, NOTIFY, RESPONSE, UNKNOWN),
+     *            duplicatesSuppressed, filteredOut, cacheSize, sendErrors, socketTimeouts, descriptionsFetched,
+     *            descriptionCacheHits, descriptionErrors, probesSent, probesAnswered, mdnsReceived, mdnsMalformed,
+     *            mdnsQueriesSent, mdnsKnownAnswers, listeners, active, threadState (NEW, RUNNABLE, TERMINATED, ... of
+     *            the plugin's own background thread) and the histograms parseTimeNanos, firstResponseDelayMillis,
+     *            lastResponseDelayMillis and probeRttMicros.
+     */
+
+    /**
+     * Callback for {@link probe}.
+     *
+     * @callback probeCallback
+     * @param {Array<Object>} results
+     *            One per target, in the same order: {target, alive, rtt (milliseconds), answer} for devices, which
+     *            answered, {target, alive: false, error} for the others. The rtt counts from the first probe, even if
+     *            only the repeated one was answered.
+     */
 };